@@ -0,0 +1,54 @@
+package de.rwth_aachen.afu.raspager;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+public final class Benchmarks {
+	private static final String TEXT = "The quick brown fox jumps over the lazy dog 0123456789. ";
+	private static final String DIGITS = "0123456789 -";
+
+	private Benchmarks() {
+	}
+
+	/**
+	 * Gets the number of batches the scheduler sends in a slot window.
+	 * 
+	 * @param slots
+	 *            Number of consecutive slots.
+	 * @return Number of batches.
+	 */
+	public static int maxBatches(int slots) {
+		return Scheduler.getMaxBatches(slots * 64, 0);
+	}
+
+	/**
+	 * Creates an alpha numeric text.
+	 * 
+	 * @param length
+	 *            Number of characters.
+	 * @return Text.
+	 */
+	public static String text(int length) {
+		return repeat(TEXT, length);
+	}
+
+	/**
+	 * Creates a numeric text.
+	 * 
+	 * @param length
+	 *            Number of characters.
+	 * @return Text.
+	 */
+	public static String number(int length) {
+		return repeat(DIGITS, length);
+	}
+
+	private static String repeat(String s, int length) {
+		StringBuilder sb = new StringBuilder(length);
+		while (sb.length() < length) {
+			sb.append(s.charAt(sb.length() % s.length()));
+		}
+
+		return sb.toString();
+	}
+}
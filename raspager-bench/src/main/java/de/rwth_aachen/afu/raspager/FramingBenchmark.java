@@ -0,0 +1,77 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Batch framing as done by the scheduler before each slot: packing queued
+ * messages into the batches of the slot window and writing them after the
+ * preamble. The time includes refilling the queue, which is small compared to
+ * the packing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+	@Param({ "1", "4", "16" })
+	public int slots;
+
+	@Param({ "16", "80", "240" })
+	public int length;
+
+	private final BatchPacker packer = new BatchPacker();
+	private final CodeWordBuffer codeWords = new CodeWordBuffer(1024);
+	private final List<Message> skipped = new ArrayList<>();
+	private Message[] messages;
+	private MessageQueue queue;
+	private MessageQueue.Source source;
+	private int maxBatches;
+
+	@Setup
+	public void setup() {
+		maxBatches = Benchmarks.maxBatches(slots);
+
+		// Enough messages with different addresses to fill the window
+		String text = Benchmarks.text(length);
+		int perMessage = Pocsag.encodeText(1000, 3, text).size();
+		messages = new Message[maxBatches * 16 / perMessage + 1];
+		for (int i = 0; i < messages.length; ++i) {
+			messages[i] = new Message(6, 1, 1000 + i, 3, text, null);
+		}
+
+		queue = new MessageQueue(messages.length, MessageQueue.OverflowPolicy.RETRY);
+		source = queue.addSource("bench", 1);
+	}
+
+	@Benchmark
+	public CodeWordBuffer frame() {
+		queue.clear();
+		for (Message message : messages) {
+			source.offer(message);
+		}
+
+		Scheduler.packMessages(queue, packer, maxBatches, skipped);
+
+		codeWords.clear();
+		codeWords.add(Pocsag.PRAEAMBLE, 18);
+		packer.write(codeWords);
+
+		return codeWords;
+	}
+}
@@ -0,0 +1,66 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Code word generation: CRC and message encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PocsagBenchmark {
+	@Param({ "16", "80", "240" })
+	public int length;
+
+	private String text;
+	private String number;
+	private int[] data;
+	private int[] crcs;
+	private int cw = 0x12345600;
+
+	@Setup
+	public void setup() {
+		text = Benchmarks.text(length);
+		number = Benchmarks.number(length);
+
+		data = Pocsag.encodeText(1000, 3, text).toArray();
+		crcs = new int[data.length];
+	}
+
+	@Benchmark
+	public int crc() {
+		cw += 0x800;
+		return Pocsag.crc(cw);
+	}
+
+	@Benchmark
+	public int[] crcArray() {
+		Pocsag.crc(data, crcs, data.length);
+		return crcs;
+	}
+
+	@Benchmark
+	public CodeWordBuffer encodeText() {
+		return Pocsag.encodeText(1000, 3, text);
+	}
+
+	@Benchmark
+	public CodeWordBuffer encodeNumber() {
+		return Pocsag.encodeNumber(1000, 0, number);
+	}
+}
@@ -0,0 +1,55 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Parsing of a message line received from the master.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolDecoderBenchmark {
+	@Param({ "16", "80", "240" })
+	public int length;
+
+	private final ProtocolDecoder decoder = new ProtocolDecoder(4096);
+	private final List<Object> out = new ArrayList<>();
+	private ByteBuf line;
+
+	@Setup
+	public void setup() {
+		String s = "#1A 6:1:3E8:3:" + Benchmarks.text(length) + "\r\n";
+		line = Unpooled.directBuffer().writeBytes(s.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Benchmark
+	public Object decodeMessage() throws Exception {
+		line.readerIndex(0);
+		out.clear();
+		// The context is not used by the decoder
+		decoder.decode(null, line, out);
+
+		return out.get(0);
+	}
+}
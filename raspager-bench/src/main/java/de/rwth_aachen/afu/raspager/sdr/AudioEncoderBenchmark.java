@@ -0,0 +1,50 @@
+package de.rwth_aachen.afu.raspager.sdr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.rwth_aachen.afu.raspager.Benchmarks;
+
+/**
+ * PCM synthesis at 48 kHz of a completely filled slot window.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AudioEncoderBenchmark {
+	@Param({ "1", "4", "16" })
+	public int slots;
+
+	private final AudioEncoder encoder = new AudioEncoder();
+	private int[] data;
+
+	@Setup
+	public void setup() {
+		encoder.setCorrection(0.35f);
+
+		// preamble + batches of the window
+		data = new int[18 + Benchmarks.maxBatches(slots) * 17];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = 0x7A89C197 * (i + 1);
+		}
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return encoder.encode(data, data.length);
+	}
+}
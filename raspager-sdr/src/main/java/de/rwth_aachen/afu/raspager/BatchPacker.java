@@ -0,0 +1,150 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.Arrays;
+
+/**
+ * Packs messages into POCSAG batches. Each message is placed at the first
+ * position within its frame that is followed by enough free code words, so
+ * later messages fill the idle frames left by earlier ones. Messages added
+ * first get the earliest positions.
+ */
+final class BatchPacker {
+	private static final int CODEWORDS_PER_BATCH = 16;
+	private int[] codeWords = new int[0];
+	private boolean[] used = new boolean[0];
+	private int capacity = 0;
+	private int usedBatches = 0;
+	private int usedCodeWords = 0;
+	private int messageCount = 0;
+
+	/**
+	 * Removes all messages and sets the number of available batches.
+	 * 
+	 * @param maxBatches
+	 *            Maximum number of batches.
+	 */
+	public void reset(int maxBatches) {
+		capacity = Math.max(0, maxBatches) * CODEWORDS_PER_BATCH;
+		if (capacity > codeWords.length) {
+			codeWords = new int[capacity];
+			used = new boolean[capacity];
+		} else {
+			Arrays.fill(used, 0, capacity, false);
+		}
+
+		// free positions are sent as idle code words
+		Arrays.fill(codeWords, 0, capacity, Pocsag.IDLE);
+
+		usedBatches = 0;
+		usedCodeWords = 0;
+		messageCount = 0;
+	}
+
+	/**
+	 * Tries to add a message.
+	 * 
+	 * @param cws
+	 *            Code words of the message.
+	 * @return True if the message was added, false if there is no room left
+	 *         for it.
+	 */
+	public boolean add(CodeWordBuffer cws) {
+		int length = cws.size();
+		int start = 2 * cws.getFramePos();
+
+		for (int batch = 0; batch < capacity; batch += CODEWORDS_PER_BATCH) {
+			for (int pos = batch + start; pos <= batch + start + 1; ++pos) {
+				if (pos + length > capacity) {
+					return false;
+				}
+
+				if (isFree(pos, length)) {
+					System.arraycopy(cws.array(), 0, codeWords, pos, length);
+					Arrays.fill(used, pos, pos + length, true);
+
+					usedBatches = Math.max(usedBatches, (pos + length - 1) / CODEWORDS_PER_BATCH + 1);
+					usedCodeWords += length;
+					++messageCount;
+
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private boolean isFree(int pos, int length) {
+		for (int i = pos; i < pos + length; ++i) {
+			if (used[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks if all code words are in use.
+	 * 
+	 * @return True if no more messages can be added.
+	 */
+	public boolean isFull() {
+		return usedCodeWords >= capacity;
+	}
+
+	/**
+	 * Gets the number of added messages.
+	 * 
+	 * @return Number of messages.
+	 */
+	public int getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * Gets the number of batches in use.
+	 * 
+	 * @return Number of batches.
+	 */
+	public int getUsedBatches() {
+		return usedBatches;
+	}
+
+	/**
+	 * Gets the number of code words occupied by messages.
+	 * 
+	 * @return Number of code words.
+	 */
+	public int getUsedCodeWords() {
+		return usedCodeWords;
+	}
+
+	/**
+	 * Gets the ratio of message code words to all code words in the used
+	 * batches (excluding sync code words).
+	 * 
+	 * @return Fill ratio between 0 and 1.
+	 */
+	public float getFillRatio() {
+		if (usedBatches == 0) {
+			return 0.0f;
+		}
+
+		return (float) usedCodeWords / (usedBatches * CODEWORDS_PER_BATCH);
+	}
+
+	/**
+	 * Writes the used batches. Each batch starts with a sync code word, free
+	 * positions are filled with idle code words.
+	 * 
+	 * @param out
+	 *            Buffer receiving the batches.
+	 */
+	public void write(CodeWordBuffer out) {
+		for (int batch = 0; batch < usedBatches; ++batch) {
+			out.add(Pocsag.SYNC);
+			out.add(codeWords, batch * CODEWORDS_PER_BATCH, CODEWORDS_PER_BATCH);
+		}
+	}
+}
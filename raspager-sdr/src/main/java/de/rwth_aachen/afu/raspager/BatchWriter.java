@@ -0,0 +1,88 @@
+package de.rwth_aachen.afu.raspager;
+
+/**
+ * Writes messages as one continuous stream of POCSAG batches. A message
+ * continues the current batch if its frame is not behind the write position,
+ * otherwise the batch is filled with idle code words and a new one starts.
+ */
+final class BatchWriter {
+	private static final int BATCH_SIZE = 17;
+	private final CodeWordBuffer out;
+	private final int offset;
+
+	/**
+	 * Creates a new writer. The first batch starts at the current end of the
+	 * buffer.
+	 * 
+	 * @param out
+	 *            Buffer receiving the batches.
+	 */
+	public BatchWriter(CodeWordBuffer out) {
+		this.out = out;
+		this.offset = out.size();
+	}
+
+	/**
+	 * Gets the write position within the current batch.
+	 * 
+	 * @return Position, 0 if a new batch has to be started.
+	 */
+	private int position() {
+		return (out.size() - offset) % BATCH_SIZE;
+	}
+
+	/**
+	 * Adds a message.
+	 * 
+	 * @param cws
+	 *            Code words of the message.
+	 */
+	public void add(CodeWordBuffer cws) {
+		// position of the first code word of the frame (after the sync word)
+		int target = 1 + 2 * cws.getFramePos();
+		int pos = position();
+
+		if (pos > target + 1) {
+			finish();
+			pos = 0;
+		}
+
+		// each batch starts with a sync code word
+		if (pos == 0) {
+			out.add(Pocsag.SYNC);
+			pos = 1;
+		}
+
+		// add idle code words until frame position is reached
+		if (pos < target) {
+			out.add(Pocsag.IDLE, target - pos);
+		}
+
+		for (int i = 0; i < cws.size(); ++i) {
+			if (position() == 0) {
+				out.add(Pocsag.SYNC);
+			}
+
+			out.add(cws.get(i));
+		}
+	}
+
+	/**
+	 * Fills the current batch with idle code words.
+	 */
+	public void finish() {
+		int pos = position();
+		if (pos != 0) {
+			out.add(Pocsag.IDLE, BATCH_SIZE - pos);
+		}
+	}
+
+	/**
+	 * Gets the number of started batches.
+	 * 
+	 * @return Number of batches.
+	 */
+	public int getBatchCount() {
+		return (out.size() - offset + BATCH_SIZE - 1) / BATCH_SIZE;
+	}
+}
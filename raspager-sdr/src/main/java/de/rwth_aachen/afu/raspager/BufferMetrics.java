@@ -0,0 +1,89 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.List;
+
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Memory statistics of the pooled network buffer allocator.
+ */
+final class BufferMetrics {
+	private final PooledByteBufAllocator allocator;
+
+	public BufferMetrics(PooledByteBufAllocator allocator) {
+		this.allocator = allocator;
+	}
+
+	public int getDirectArenas() {
+		return allocator.numDirectArenas();
+	}
+
+	public int getHeapArenas() {
+		return allocator.numHeapArenas();
+	}
+
+	/**
+	 * Gets the direct memory held by the pool, including buffers too large
+	 * to be pooled.
+	 * 
+	 * @return Used memory in bytes.
+	 */
+	public long getUsedDirectMemory() {
+		long total = 0;
+		for (PoolArenaMetric arena : allocator.directArenas()) {
+			total += arena.numActiveBytes();
+		}
+
+		return total;
+	}
+
+	/**
+	 * Gets the heap memory held by the pool, including buffers too large to
+	 * be pooled.
+	 * 
+	 * @return Used memory in bytes.
+	 */
+	public long getUsedHeapMemory() {
+		long total = 0;
+		for (PoolArenaMetric arena : allocator.heapArenas()) {
+			total += arena.numActiveBytes();
+		}
+
+		return total;
+	}
+
+	/**
+	 * Gets the number of direct buffers currently in use.
+	 * 
+	 * @return Number of buffers.
+	 */
+	public long getActiveDirectBuffers() {
+		return activeAllocations(allocator.directArenas());
+	}
+
+	/**
+	 * Gets the number of heap buffers currently in use.
+	 * 
+	 * @return Number of buffers.
+	 */
+	public long getActiveHeapBuffers() {
+		return activeAllocations(allocator.heapArenas());
+	}
+
+	private static long activeAllocations(List<PoolArenaMetric> arenas) {
+		long total = 0;
+		for (PoolArenaMetric arena : arenas) {
+			total += arena.numActiveAllocations();
+		}
+
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("direct: %d arenas, %d bytes, %d buffers, heap: %d arenas, %d bytes, %d buffers",
+				getDirectArenas(), getUsedDirectMemory(), getActiveDirectBuffers(), getHeapArenas(),
+				getUsedHeapMemory(), getActiveHeapBuffers());
+	}
+}
@@ -0,0 +1,193 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.Arrays;
+
+/**
+ * Growable buffer of POCSAG code words backed by a primitive int array.
+ */
+public final class CodeWordBuffer {
+	private static final int DEFAULT_CAPACITY = 32;
+	private int[] data;
+	private int size = 0;
+	private int framePos = 0;
+
+	/**
+	 * Creates a new buffer with the default capacity.
+	 */
+	public CodeWordBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new buffer.
+	 * 
+	 * @param capacity
+	 *            Initial capacity in code words.
+	 */
+	public CodeWordBuffer(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Invalid capacity.");
+		}
+
+		data = new int[capacity];
+	}
+
+	/**
+	 * Creates a copy of a buffer including its frame position.
+	 * 
+	 * @param src
+	 *            Buffer to copy.
+	 */
+	public CodeWordBuffer(CodeWordBuffer src) {
+		data = Arrays.copyOf(src.data, src.size);
+		size = src.size;
+		framePos = src.framePos;
+	}
+
+	/**
+	 * Gets the frame position of the first code word.
+	 * 
+	 * @return Frame position (0-7).
+	 */
+	public int getFramePos() {
+		return framePos;
+	}
+
+	/**
+	 * Sets the frame position of the first code word.
+	 * 
+	 * @param framePos
+	 *            Frame position (0-7).
+	 */
+	public void setFramePos(int framePos) {
+		this.framePos = framePos;
+	}
+
+	/**
+	 * Gets the number of code words in the buffer.
+	 * 
+	 * @return Number of code words.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks if the buffer is empty.
+	 * 
+	 * @return True if the buffer does not contain any code words.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Gets a code word.
+	 * 
+	 * @param index
+	 *            Index of the code word.
+	 * @return Code word at the given index.
+	 * @throws IndexOutOfBoundsException
+	 *             If the index is invalid.
+	 */
+	public int get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		}
+
+		return data[index];
+	}
+
+	/**
+	 * Gets the backing array. Only the first {@link #size() size} elements are
+	 * valid and the array is replaced when the buffer grows.
+	 * 
+	 * @return Backing array.
+	 */
+	public int[] array() {
+		return data;
+	}
+
+	/**
+	 * Appends a code word.
+	 * 
+	 * @param cw
+	 *            Code word to add.
+	 */
+	public void add(int cw) {
+		ensureCapacity(size + 1);
+		data[size++] = cw;
+	}
+
+	/**
+	 * Appends the same code word multiple times.
+	 * 
+	 * @param cw
+	 *            Code word to add.
+	 * @param count
+	 *            Number of times to add the code word.
+	 */
+	public void add(int cw, int count) {
+		ensureCapacity(size + count);
+		Arrays.fill(data, size, size + count, cw);
+		size += count;
+	}
+
+	/**
+	 * Appends code words from an array.
+	 * 
+	 * @param src
+	 *            Source array.
+	 * @param offset
+	 *            Offset of the first code word in the source array.
+	 * @param length
+	 *            Number of code words to add.
+	 */
+	public void add(int[] src, int offset, int length) {
+		ensureCapacity(size + length);
+		System.arraycopy(src, offset, data, size, length);
+		size += length;
+	}
+
+	/**
+	 * Appends a range of code words from another buffer.
+	 * 
+	 * @param src
+	 *            Source buffer.
+	 * @param offset
+	 *            Index of the first code word to add.
+	 * @param length
+	 *            Number of code words to add.
+	 */
+	public void add(CodeWordBuffer src, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > src.size) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		add(src.data, offset, length);
+	}
+
+	/**
+	 * Removes all code words and resets the frame position. The capacity is
+	 * retained.
+	 */
+	public void clear() {
+		size = 0;
+		framePos = 0;
+	}
+
+	/**
+	 * Copies the code words into a new array.
+	 * 
+	 * @return Array containing the code words.
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package de.rwth_aachen.afu.raspager;
+
+/**
+ * Request received from the master. Instances are reused by the decoder, so
+ * handlers must not keep a reference after processing.
+ */
+final class Command {
+	public enum Type {
+		/**
+		 * New message: {@code #xx type:speed:addr:func:text}
+		 */
+		MESSAGE,
+		/**
+		 * Master identification: {@code 2:data}
+		 */
+		MASTER_IDENTIFY,
+		/**
+		 * Time correction: {@code 3:+xxxx} or {@code 3:-xxxx}
+		 */
+		TIME_CORRECTION,
+		/**
+		 * Active time slots: {@code 4:slots}
+		 */
+		TIME_SLOTS,
+		/**
+		 * Malformed or unknown request.
+		 */
+		INVALID
+	}
+
+	private Type type = Type.INVALID;
+	private int messageId;
+	private int messageType;
+	private int speed;
+	private int address;
+	private int function;
+	private int value;
+	private final StringBuilder text;
+
+	public Command() {
+		this(256);
+	}
+
+	private Command(int capacity) {
+		text = new StringBuilder(capacity);
+	}
+
+	/**
+	 * Creates an independent copy, e.g. to process the command on another
+	 * thread while the decoder reuses this instance.
+	 * 
+	 * @return Copy of this command.
+	 */
+	public Command copy() {
+		Command c = new Command(text.length());
+		c.type = type;
+		c.messageId = messageId;
+		c.messageType = messageType;
+		c.speed = speed;
+		c.address = address;
+		c.function = function;
+		c.value = value;
+		c.text.append(text);
+
+		return c;
+	}
+
+	/**
+	 * Resets all fields.
+	 * 
+	 * @param type
+	 *            New command type.
+	 */
+	void reset(Type type) {
+		this.type = type;
+		messageId = 0;
+		messageType = 0;
+		speed = 0;
+		address = 0;
+		function = 0;
+		value = 0;
+		text.setLength(0);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	void setType(Type type) {
+		this.type = type;
+	}
+
+	/**
+	 * Gets the message ID of a message command.
+	 * 
+	 * @return Message ID (0-255).
+	 */
+	public int getMessageId() {
+		return messageId;
+	}
+
+	void setMessageId(int messageId) {
+		this.messageId = messageId;
+	}
+
+	public int getMessageType() {
+		return messageType;
+	}
+
+	void setMessageType(int messageType) {
+		this.messageType = messageType;
+	}
+
+	public int getSpeed() {
+		return speed;
+	}
+
+	void setSpeed(int speed) {
+		this.speed = speed;
+	}
+
+	public int getAddress() {
+		return address;
+	}
+
+	void setAddress(int address) {
+		this.address = address;
+	}
+
+	public int getFunction() {
+		return function;
+	}
+
+	void setFunction(int function) {
+		this.function = function;
+	}
+
+	/**
+	 * Gets the numeric value of a time correction command.
+	 * 
+	 * @return Time correction.
+	 */
+	public int getValue() {
+		return value;
+	}
+
+	void setValue(int value) {
+		this.value = value;
+	}
+
+	/**
+	 * Gets the text of the command. This is the message text, the master
+	 * identification data or the time slots.
+	 * 
+	 * @return Text (only valid until the next command is decoded).
+	 */
+	public StringBuilder getText() {
+		return text;
+	}
+}
@@ -6,6 +6,17 @@ final class ConfigKeys {
 	public static final String TX_DELAY = "txDelay";
 	public static final String NET_PORT = "net.port";
 	public static final String NET_MASTERS = "net.masters";
+	public static final String NET_TRANSPORT = "net.transport";
+	public static final String NET_WORKER_THREADS = "net.workerthreads";
+	public static final String NET_RCVBUF = "net.rcvbuf";
+	public static final String NET_MAX_CONNECTIONS = "net.maxconnections";
+	public static final String NET_CONNECTION_RATE = "net.connectionrate";
+	public static final String NET_CONNECTION_BURST = "net.connectionburst";
+	public static final String NET_HANDLER_THREADS = "net.handlerthreads";
+	public static final String NET_ALLOC_ARENAS = "net.alloc.arenas";
+	public static final String NET_ALLOC_PAGE_SIZE = "net.alloc.pagesize";
+	public static final String NET_ALLOC_MAX_ORDER = "net.alloc.maxorder";
+	public static final String NET_FLUSH_THRESHOLD = "net.flushthreshold";
 	public static final String GPIO_USE = "gpio.use";
 	public static final String GPIO_PIN = "gpio.pin";
 	public static final String GPIO_RASPI_REV = "gpio.raspirev";
@@ -14,6 +25,22 @@ final class ConfigKeys {
 	public static final String SERIAL_PIN = "serial.pin";
 	public static final String SDR_DEVICE = "sdr.device";
 	public static final String SDR_CORRECTION = "sdr.correction";
+	public static final String TRANSMITTER = "transmitter";
+	public static final String VIRTUAL_OUTPUT = "virtual.output";
+	public static final String VIRTUAL_DIRECTORY = "virtual.directory";
+	public static final String VIRTUAL_MAX_FILES = "virtual.maxfiles";
+	public static final String VIRTUAL_REALTIME = "virtual.realtime";
+	public static final String VIRTUAL_EVENT_LOG = "virtual.eventlog";
+	public static final String QUEUE_CAPACITY = "queue.capacity";
+	public static final String QUEUE_SOURCE_CAPACITY = "queue.sourcecapacity";
+	public static final String QUEUE_OVERFLOW = "queue.overflow";
+	public static final String QUEUE_WEIGHTS = "queue.weights";
+	public static final String QUEUE_DEDUP_WINDOW = "queue.dedupwindow";
+	public static final String QUEUE_DEDUP_SIZE = "queue.dedupsize";
+	public static final String MESSAGE_CACHE_SIZE = "message.cachesize";
+	public static final String STATS_INTERVAL = "stats.interval";
+	public static final String METRICS_PORT = "metrics.port";
+	public static final String METRICS_ADDRESS = "metrics.address";
 
 	private ConfigKeys() {
 	}
@@ -0,0 +1,163 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.ipfilter.AbstractRemoteAddressFilter;
+
+/**
+ * Limits the number of concurrent connections and the rate of new
+ * connections per source address. Should be placed right after the master
+ * server filter, so connections from unknown addresses can neither use up the
+ * limits of the masters nor the memory for tracking source addresses.
+ */
+@Sharable
+final class ConnectionLimiter extends AbstractRemoteAddressFilter<InetSocketAddress> {
+	private static final Logger log = Logger.getLogger(ConnectionLimiter.class.getName());
+	// Limits the memory used for tracking source addresses
+	private static final int MAX_TRACKED_ADDRESSES = 1024;
+	private final int maxConnections;
+	private final double tokensPerNano;
+	private final int burst;
+	private final AtomicInteger connections = new AtomicInteger(0);
+	// Least recently used address first
+	private final Map<InetAddress, TokenBucket> buckets = new LinkedHashMap<InetAddress, TokenBucket>(16, 0.75f,
+			true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetAddress, TokenBucket> eldest) {
+			return size() > MAX_TRACKED_ADDRESSES;
+		}
+	};
+	private final LongAdder rejectedByRate = new LongAdder();
+	private final LongAdder rejectedByLimit = new LongAdder();
+	private final LogThrottle logThrottle = new LogThrottle(10, TimeUnit.SECONDS);
+
+	/**
+	 * Token bucket of a single source address. Guarded by the bucket map.
+	 */
+	private final class TokenBucket {
+		private double tokens = burst;
+		private long lastRefill = System.nanoTime();
+
+		private boolean tryTake(long now) {
+			refill(now);
+			if (tokens < 1.0) {
+				return false;
+			}
+
+			tokens -= 1.0;
+			return true;
+		}
+
+		private void refill(long now) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+			lastRefill = now;
+		}
+	}
+
+	/**
+	 * Creates a new connection limiter.
+	 * 
+	 * @param maxConnections
+	 *            Maximum number of concurrent connections, 0 for no limit.
+	 * @param connectionsPerMinute
+	 *            Rate of new connections per source address, 0 for no
+	 *            limit.
+	 * @param burst
+	 *            Number of connections a source address may open at once.
+	 */
+	public ConnectionLimiter(int maxConnections, int connectionsPerMinute, int burst) {
+		this.maxConnections = maxConnections;
+		this.tokensPerNano = connectionsPerMinute / (double) TimeUnit.MINUTES.toNanos(1);
+		this.burst = Math.max(1, burst);
+	}
+
+	@Override
+	protected boolean accept(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) throws Exception {
+		if (tokensPerNano > 0 && !takeToken(remoteAddress.getAddress())) {
+			rejectedByRate.increment();
+			return false;
+		}
+
+		if (maxConnections > 0) {
+			if (connections.incrementAndGet() > maxConnections) {
+				connections.decrementAndGet();
+				rejectedByLimit.increment();
+				return false;
+			}
+
+			ctx.channel().closeFuture().addListener((f) -> connections.decrementAndGet());
+		}
+
+		return true;
+	}
+
+	private boolean takeToken(InetAddress addr) {
+		long now = System.nanoTime();
+
+		synchronized (buckets) {
+			// If too many addresses are tracked, the least recently used one is
+			// forgotten and starts with a full bucket when it connects again
+			TokenBucket bucket = buckets.get(addr);
+			if (bucket == null) {
+				bucket = new TokenBucket();
+				buckets.put(addr, bucket);
+			}
+
+			return bucket.tryTake(now);
+		}
+	}
+
+	@Override
+	protected ChannelFuture channelRejected(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) {
+		long suppressed = logThrottle.acquire();
+		if (suppressed >= 0) {
+			log.log(Level.WARNING, "Connection limit exceeded: {0} ({1} more rejected)",
+					new Object[] { remoteAddress.getHostString(), suppressed });
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets the number of connections rejected because the source address
+	 * connected too often.
+	 * 
+	 * @return Number of rejected connections.
+	 */
+	public long getRejectedByRate() {
+		return rejectedByRate.sum();
+	}
+
+	/**
+	 * Gets the number of connections rejected because too many connections
+	 * were open.
+	 * 
+	 * @return Number of rejected connections.
+	 */
+	public long getRejectedByLimit() {
+		return rejectedByLimit.sum();
+	}
+
+	/**
+	 * Gets the number of open connections. Only counted if a connection limit
+	 * is set.
+	 * 
+	 * @return Number of connections.
+	 */
+	public int getConnectionCount() {
+		return connections.get();
+	}
+}
@@ -0,0 +1,135 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers recently queued messages so that a message received again (e.g.
+ * from a second master after a fail over) is not transmitted twice. Messages
+ * are identified by a 64 bit hash of type, address, function and text.
+ */
+final class DuplicateFilter {
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private final long windowNanos;
+	private final int maxEntries;
+	// Hash -> time added, oldest first
+	private final LinkedHashMap<Long, Long> entries;
+	private long hitCount = 0;
+	private long missCount = 0;
+
+	/**
+	 * Creates a new filter.
+	 * 
+	 * @param window
+	 *            Time a message is remembered.
+	 * @param unit
+	 *            Time unit of the window.
+	 * @param maxEntries
+	 *            Maximum number of remembered messages.
+	 */
+	public DuplicateFilter(long window, TimeUnit unit, int maxEntries) {
+		this.windowNanos = unit.toNanos(window);
+		this.maxEntries = Math.max(1, maxEntries);
+		this.entries = new LinkedHashMap<Long, Long>(64, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+				return size() > DuplicateFilter.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Calculates the key of a message.
+	 * 
+	 * @param type
+	 *            Message type.
+	 * @param address
+	 *            Pager address.
+	 * @param function
+	 *            Function bits.
+	 * @param text
+	 *            Message text.
+	 * @return Message key.
+	 */
+	public static long hash(int type, int address, int function, CharSequence text) {
+		long h = FNV_OFFSET;
+		h = (h ^ type) * FNV_PRIME;
+		h = (h ^ address) * FNV_PRIME;
+		h = (h ^ function) * FNV_PRIME;
+		for (int i = 0; i < text.length(); ++i) {
+			h = (h ^ text.charAt(i)) * FNV_PRIME;
+		}
+
+		return h;
+	}
+
+	/**
+	 * Remembers a message unless it was added within the time window. Check
+	 * and insert are atomic, so of two connections receiving the same message
+	 * at once only one queues it.
+	 * 
+	 * @param key
+	 *            Message key.
+	 * @return False if the message is a duplicate.
+	 */
+	public synchronized boolean addIfAbsent(long key) {
+		long now = System.nanoTime();
+		evictExpired(now);
+
+		if (entries.containsKey(key)) {
+			++hitCount;
+			return false;
+		}
+
+		++missCount;
+		entries.put(key, now);
+		return true;
+	}
+
+	/**
+	 * Forgets a message added by {@link #addIfAbsent(long)} which could not
+	 * be queued, so it is not suppressed when the master retries it.
+	 * 
+	 * @param key
+	 *            Message key.
+	 */
+	public synchronized void remove(long key) {
+		if (entries.remove(key) != null) {
+			--missCount;
+		}
+	}
+
+	private void evictExpired(long now) {
+		Iterator<Long> it = entries.values().iterator();
+		while (it.hasNext() && now - it.next() >= windowNanos) {
+			it.remove();
+		}
+	}
+
+	/**
+	 * Gets the number of suppressed duplicates.
+	 * 
+	 * @return Number of hits.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Gets the number of messages which were not duplicates.
+	 * 
+	 * @return Number of misses.
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
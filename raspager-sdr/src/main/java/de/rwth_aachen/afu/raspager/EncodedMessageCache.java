@@ -0,0 +1,207 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of encoded messages, so messages sent repeatedly (time beacons,
+ * rubrics, calibration) are only encoded once. Callers get their own copy of
+ * the cached code words.
+ */
+final class EncodedMessageCache implements EncodedMessageCacheMXBean {
+	private final Object lock = new Object();
+	private int maxEntries;
+	private long hitCount = 0;
+	private long missCount = 0;
+	private final LinkedHashMap<Key, CodeWordBuffer> entries = new LinkedHashMap<Key, CodeWordBuffer>(64, 0.75f,
+			true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, CodeWordBuffer> eldest) {
+			return size() > maxEntries;
+		}
+	};
+
+	private static final class Key {
+		private final int type;
+		private final int address;
+		private final int function;
+		private final String text;
+		private final int hash;
+
+		Key(int type, int address, int function, String text) {
+			this.type = type;
+			this.address = address;
+			this.function = function;
+			this.text = text;
+
+			int h = type;
+			h = 31 * h + address;
+			h = 31 * h + function;
+			this.hash = 31 * h + text.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			} else if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) obj;
+			return hash == other.hash && type == other.type && address == other.address
+					&& function == other.function && text.equals(other.text);
+		}
+	}
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param maxEntries
+	 *            Maximum number of entries, 0 disables the cache.
+	 */
+	public EncodedMessageCache(int maxEntries) {
+		this.maxEntries = Math.max(0, maxEntries);
+	}
+
+	/**
+	 * Sets the maximum number of cached messages. Surplus entries are evicted,
+	 * least recently used first.
+	 * 
+	 * @param maxEntries
+	 *            Maximum number of entries, 0 disables the cache.
+	 */
+	public void setMaxEntries(int maxEntries) {
+		synchronized (lock) {
+			this.maxEntries = Math.max(0, maxEntries);
+
+			Iterator<Key> it = entries.keySet().iterator();
+			while (entries.size() > this.maxEntries && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	@Override
+	public int getMaxEntries() {
+		synchronized (lock) {
+			return maxEntries;
+		}
+	}
+
+	/**
+	 * Gets the encoded message, encoding it if it is not cached.
+	 * 
+	 * @param type
+	 *            Message type (5 numeric, 6 alpha numeric).
+	 * @param address
+	 *            Pager address.
+	 * @param function
+	 *            Function bits.
+	 * @param text
+	 *            Message text.
+	 * @return Copy of the code words of the message.
+	 * @throws IllegalArgumentException
+	 *             If the message type is invalid.
+	 */
+	public CodeWordBuffer get(int type, int address, int function, String text) {
+		Key key = new Key(type, address, function, text);
+
+		synchronized (lock) {
+			CodeWordBuffer cws = entries.get(key);
+			if (cws != null) {
+				++hitCount;
+				return new CodeWordBuffer(cws);
+			}
+
+			++missCount;
+		}
+
+		// Encode outside the lock, a concurrent miss encodes twice at worst.
+		CodeWordBuffer cws = encode(type, address, function, text);
+
+		synchronized (lock) {
+			if (maxEntries > 0) {
+				entries.put(key, new CodeWordBuffer(cws));
+			}
+		}
+
+		return cws;
+	}
+
+	/**
+	 * Encodes a message without using a cache.
+	 * 
+	 * @param type
+	 *            Message type (5 numeric, 6 alpha numeric).
+	 * @param address
+	 *            Pager address.
+	 * @param function
+	 *            Function bits.
+	 * @param text
+	 *            Message text.
+	 * @return Code words of the message.
+	 * @throws IllegalArgumentException
+	 *             If the message type is invalid.
+	 */
+	static CodeWordBuffer encode(int type, int address, int function, String text) {
+		switch (type) {
+		case 5:
+			// numeric
+			// #00 5:1:9C8:0:094016 130412
+			return Pocsag.encodeNumber(address, function, text);
+		case 6:
+			// alpha numeric
+			return Pocsag.encodeText(address, function, text);
+		default:
+			throw new IllegalArgumentException("Invalid message type: " + type);
+		}
+	}
+
+	@Override
+	public long getHitCount() {
+		synchronized (lock) {
+			return hitCount;
+		}
+	}
+
+	@Override
+	public long getMissCount() {
+		synchronized (lock) {
+			return missCount;
+		}
+	}
+
+	/**
+	 * Gets the ratio of cache hits to all lookups.
+	 * 
+	 * @return Hit rate between 0 and 1.
+	 */
+	@Override
+	public float getHitRate() {
+		synchronized (lock) {
+			long total = hitCount + missCount;
+			return total > 0 ? (float) hitCount / total : 0.0f;
+		}
+	}
+
+	public int size() {
+		synchronized (lock) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return size();
+	}
+}
@@ -0,0 +1,16 @@
+package de.rwth_aachen.afu.raspager;
+
+/**
+ * Management interface of the {@link EncodedMessageCache}.
+ */
+public interface EncodedMessageCacheMXBean {
+	int getSize();
+
+	int getMaxEntries();
+
+	long getHitCount();
+
+	long getMissCount();
+
+	float getHitRate();
+}
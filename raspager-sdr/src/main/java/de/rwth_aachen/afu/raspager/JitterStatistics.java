@@ -0,0 +1,79 @@
+package de.rwth_aachen.afu.raspager;
+
+/**
+ * Collects statistics about how late scheduled wake-ups happen.
+ */
+final class JitterStatistics {
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+	private long last = 0;
+
+	/**
+	 * Records a wake-up.
+	 * 
+	 * @param lateNanos
+	 *            Time between the planned and the actual wake-up in ns.
+	 */
+	public synchronized void record(long lateNanos) {
+		++count;
+		sum += lateNanos;
+		last = lateNanos;
+
+		if (lateNanos > max) {
+			max = lateNanos;
+		}
+	}
+
+	/**
+	 * Gets the number of recorded wake-ups.
+	 * 
+	 * @return Number of wake-ups.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the mean jitter.
+	 * 
+	 * @return Mean jitter in microseconds.
+	 */
+	public synchronized long getMeanMicros() {
+		return count > 0 ? sum / count / 1000 : 0;
+	}
+
+	/**
+	 * Gets the maximum jitter.
+	 * 
+	 * @return Maximum jitter in microseconds.
+	 */
+	public synchronized long getMaxMicros() {
+		return max / 1000;
+	}
+
+	/**
+	 * Gets the jitter of the last wake-up.
+	 * 
+	 * @return Last jitter in microseconds.
+	 */
+	public synchronized long getLastMicros() {
+		return last / 1000;
+	}
+
+	/**
+	 * Resets the statistics.
+	 */
+	public synchronized void reset() {
+		count = 0;
+		sum = 0;
+		max = 0;
+		last = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("wake-ups: %d, jitter mean: %d us, max: %d us, last: %d us", count, getMeanMicros(),
+				getMaxMicros(), getLastMicros());
+	}
+}
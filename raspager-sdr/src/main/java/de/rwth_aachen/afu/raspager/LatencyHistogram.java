@@ -0,0 +1,217 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations with fixed log-linear buckets. Values below 16 us are
+ * exact, larger values are stored with 3 significant bits (12.5 % precision).
+ * Recording never allocates.
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int LINEAR_COUNT = 2 * SUB_COUNT;
+	private static final int LINEAR_BITS = SUB_BITS + 1;
+	private static final int BUCKET_COUNT = LINEAR_COUNT + (63 - LINEAR_BITS) * SUB_COUNT;
+	private final long[] counts = new long[BUCKET_COUNT];
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	/**
+	 * Summary of a histogram at a point in time.
+	 */
+	public static final class Snapshot {
+		private final long count;
+		private final long meanMicros;
+		private final long p50Micros;
+		private final long p90Micros;
+		private final long p99Micros;
+		private final long maxMicros;
+
+		private Snapshot(LatencyHistogram h) {
+			count = h.count;
+			meanMicros = h.count > 0 ? h.sum / h.count : 0;
+			p50Micros = h.percentile(50.0);
+			p90Micros = h.percentile(90.0);
+			p99Micros = h.percentile(99.0);
+			maxMicros = h.max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMeanMicros() {
+			return meanMicros;
+		}
+
+		public long getP50Micros() {
+			return p50Micros;
+		}
+
+		public long getP90Micros() {
+			return p90Micros;
+		}
+
+		public long getP99Micros() {
+			return p99Micros;
+		}
+
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count %d, mean %d us, p50 %d us, p90 %d us, p99 %d us, max %d us", count,
+					meanMicros, p50Micros, p90Micros, p99Micros, maxMicros);
+		}
+	}
+
+	/**
+	 * Records a duration. Negative durations are recorded as 0.
+	 * 
+	 * @param nanos
+	 *            Duration in ns.
+	 */
+	public synchronized void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+
+		++counts[getIndex(micros)];
+		++count;
+		sum += micros;
+
+		if (micros > max) {
+			max = micros;
+		}
+	}
+
+	private static int getIndex(long value) {
+		if (value < LINEAR_COUNT) {
+			return (int) value;
+		}
+
+		int bits = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (bits - SUB_BITS)) & (SUB_COUNT - 1);
+
+		return LINEAR_COUNT + (bits - LINEAR_BITS) * SUB_COUNT + sub;
+	}
+
+	private static long getUpperBound(int index) {
+		if (index < LINEAR_COUNT) {
+			return index;
+		}
+
+		int bits = (index - LINEAR_COUNT) / SUB_COUNT + LINEAR_BITS;
+		int sub = (index - LINEAR_COUNT) % SUB_COUNT;
+		long lower = (long) (SUB_COUNT + sub) << (bits - SUB_BITS);
+
+		return lower + (1L << (bits - SUB_BITS)) - 1;
+	}
+
+	private long percentile(double percent) {
+		if (count == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(percent / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(getUpperBound(i), max);
+			}
+		}
+
+		return max;
+	}
+
+	/**
+	 * Gets the number of recorded durations.
+	 * 
+	 * @return Number of durations.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets a percentile. The result is the upper bound of the bucket
+	 * containing the percentile.
+	 * 
+	 * @param percent
+	 *            Percentile between 0 and 100.
+	 * @return Duration in microseconds.
+	 */
+	public synchronized long getPercentileMicros(double percent) {
+		return percentile(percent);
+	}
+
+	/**
+	 * Gets the sum of all durations.
+	 * 
+	 * @return Sum in microseconds.
+	 */
+	public synchronized long getSumMicros() {
+		return sum;
+	}
+
+	/**
+	 * Counts the durations up to the given upper bounds. A bucket is counted
+	 * if its upper bound is not greater than the bound, so the result is exact
+	 * up to the precision of the histogram.
+	 * 
+	 * @param boundsMicros
+	 *            Ascending upper bounds in microseconds.
+	 * @param counts
+	 *            Array receiving the number of durations for each bound.
+	 * @return Number of all durations.
+	 */
+	public synchronized long getCumulativeCounts(long[] boundsMicros, long[] counts) {
+		long seen = 0;
+		int bucket = 0;
+		for (int i = 0; i < boundsMicros.length; ++i) {
+			while (bucket < this.counts.length && getUpperBound(bucket) <= boundsMicros[i]) {
+				seen += this.counts[bucket++];
+			}
+
+			counts[i] = seen;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Gets the maximum duration.
+	 * 
+	 * @return Maximum in microseconds.
+	 */
+	public synchronized long getMaxMicros() {
+		return max;
+	}
+
+	/**
+	 * Gets a summary of the current state.
+	 * 
+	 * @return Snapshot of the histogram.
+	 */
+	public synchronized Snapshot getSnapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Removes all recorded durations.
+	 */
+	public synchronized void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	@Override
+	public String toString() {
+		return getSnapshot().toString();
+	}
+}
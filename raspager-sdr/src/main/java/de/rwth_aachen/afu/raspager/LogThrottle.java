@@ -0,0 +1,43 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often a message is logged, e.g. for rejected connections during
+ * a port scan.
+ */
+final class LogThrottle {
+	private final long intervalNanos;
+	private final AtomicLong nextLog = new AtomicLong(System.nanoTime());
+	private final AtomicLong suppressed = new AtomicLong(0);
+
+	/**
+	 * Creates a new throttle.
+	 * 
+	 * @param interval
+	 *            Minimum time between two messages.
+	 * @param unit
+	 *            Time unit of the interval.
+	 */
+	public LogThrottle(long interval, TimeUnit unit) {
+		this.intervalNanos = unit.toNanos(interval);
+	}
+
+	/**
+	 * Checks if a message may be logged now.
+	 * 
+	 * @return Number of messages suppressed since the last one, or -1 if this
+	 *         message must be suppressed as well.
+	 */
+	public long acquire() {
+		long now = System.nanoTime();
+		long next = nextLog.get();
+		if (now - next < 0 || !nextLog.compareAndSet(next, now + intervalNanos)) {
+			suppressed.incrementAndGet();
+			return -1;
+		}
+
+		return suppressed.getAndSet(0);
+	}
+}
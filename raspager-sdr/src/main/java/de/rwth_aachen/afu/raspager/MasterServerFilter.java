@@ -1,6 +1,13 @@
 package de.rwth_aachen.afu.raspager;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,36 +17,121 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.ipfilter.AbstractRemoteAddressFilter;
 
 /**
- * This class implements an IP-based filter for master servers.
+ * This class implements an IP-based filter for master servers. Masters are
+ * given as addresses, host names or networks in CIDR notation
+ * (e.g. 44.225.0.0/16) and resolved once when the filter is created.
  * 
  * @author Philipp Thiel
  */
 @Sharable
 final class MasterServerFilter extends AbstractRemoteAddressFilter<InetSocketAddress> {
 	private static final Logger log = Logger.getLogger(MasterServerFilter.class.getName());
-	private final String[] masters;
+	private final Set<InetAddress> addresses = new HashSet<>();
+	private final PrefixNode ipv4Networks = new PrefixNode();
+	private final PrefixNode ipv6Networks = new PrefixNode();
+	private boolean hasNetworks = false;
+	private final LongAdder rejected = new LongAdder();
+	private final LogThrottle logThrottle = new LogThrottle(10, TimeUnit.SECONDS);
+
+	/**
+	 * Node of a binary trie over address bits.
+	 */
+	private static final class PrefixNode {
+		private PrefixNode zero;
+		private PrefixNode one;
+		// A network ends at this node
+		private boolean match;
+	}
 
 	/**
 	 * Creates a new filter instance.
 	 * 
 	 * @param masters
-	 *            IP addresses of valid master servers.
+	 *            IP addresses, host names or networks of valid master
+	 *            servers.
 	 */
 	public MasterServerFilter(String... masters) {
-		if (masters != null) {
-			this.masters = masters;
-		} else {
+		if (masters == null) {
 			throw new NullPointerException("masters");
 		}
+
+		for (String m : masters) {
+			try {
+				addMaster(m.trim());
+			} catch (UnknownHostException | IllegalArgumentException ex) {
+				log.log(Level.WARNING, "Ignoring invalid master: " + m, ex);
+			}
+		}
+	}
+
+	private void addMaster(String master) throws UnknownHostException {
+		int slash = master.indexOf('/');
+		if (slash < 0) {
+			for (InetAddress addr : InetAddress.getAllByName(master)) {
+				addresses.add(addr);
+			}
+
+			return;
+		}
+
+		InetAddress addr = InetAddress.getByName(master.substring(0, slash));
+		byte[] bytes = addr.getAddress();
+		int prefix = Integer.parseInt(master.substring(slash + 1));
+		if (prefix < 0 || prefix > bytes.length * 8) {
+			throw new IllegalArgumentException("Invalid prefix length: " + prefix);
+		}
+
+		if (prefix == bytes.length * 8) {
+			addresses.add(addr);
+			return;
+		}
+
+		PrefixNode node = (addr instanceof Inet4Address) ? ipv4Networks : ipv6Networks;
+		for (int i = 0; i < prefix; ++i) {
+			if (bit(bytes, i) == 0) {
+				if (node.zero == null) {
+					node.zero = new PrefixNode();
+				}
+				node = node.zero;
+			} else {
+				if (node.one == null) {
+					node.one = new PrefixNode();
+				}
+				node = node.one;
+			}
+		}
+
+		node.match = true;
+		hasNetworks = true;
+	}
+
+	private static int bit(byte[] bytes, int index) {
+		return (bytes[index >> 3] >> (7 - (index & 7))) & 1;
 	}
 
 	@Override
 	protected boolean accept(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) throws Exception {
-		String addr = remoteAddress.getAddress().getHostAddress();
-		for (String m : masters) {
-			if (m.equalsIgnoreCase(addr)) {
+		InetAddress addr = remoteAddress.getAddress();
+		if (addresses.contains(addr)) {
+			return true;
+		}
+
+		if (!hasNetworks) {
+			return false;
+		}
+
+		byte[] bytes = addr.getAddress();
+		PrefixNode node = (addr instanceof Inet4Address) ? ipv4Networks : ipv6Networks;
+		for (int i = 0; node != null; ++i) {
+			if (node.match) {
 				return true;
 			}
+
+			if (i == bytes.length * 8) {
+				break;
+			}
+
+			node = (bit(bytes, i) == 0) ? node.zero : node.one;
 		}
 
 		return false;
@@ -47,7 +139,23 @@ final class MasterServerFilter extends AbstractRemoteAddressFilter<InetSocketAdd
 
 	@Override
 	protected ChannelFuture channelRejected(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) {
-		log.log(Level.WARNING, "Connection rejected: {0}", remoteAddress.getHostString());
+		rejected.increment();
+
+		long suppressed = logThrottle.acquire();
+		if (suppressed >= 0) {
+			log.log(Level.WARNING, "Connection rejected: {0} ({1} more rejected)",
+					new Object[] { remoteAddress.getHostString(), suppressed });
+		}
+
 		return null;
 	}
+
+	/**
+	 * Gets the number of rejected connections.
+	 * 
+	 * @return Number of connections from unknown addresses.
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
 }
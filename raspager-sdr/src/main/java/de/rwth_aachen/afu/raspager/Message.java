@@ -1,20 +1,26 @@
 package de.rwth_aachen.afu.raspager;
 
-import java.util.List;
-
 final class Message {
 	private final int type;
 	private final int speed;
 	private final int address;
 	private final int function;
 	private final String text;
-	private final List<Integer> codeWords; // 0 = framePos, 1 = cw, 2 = cw, ...
+	private final CodeWordBuffer codeWords;
 
-	public Message(String str) {
-		this(str.split(":", 5));
+	public Message(String str, EncodedMessageCache cache) {
+		this(str.split(":", 5), cache);
 	}
 
-	public Message(String[] parts) {
+	/**
+	 * Creates a new message from the fields of a message command.
+	 * 
+	 * @param parts
+	 *            Type, speed, address, function and text.
+	 * @param cache
+	 *            Cache of encoded messages, null to always encode.
+	 */
+	public Message(String[] parts, EncodedMessageCache cache) {
 		if (parts.length < 5) {
 			throw new IllegalArgumentException("Invalid sized array.");
 		}
@@ -24,20 +30,24 @@ final class Message {
 		address = Integer.parseInt(parts[2], 16);
 		function = Integer.parseInt(parts[3]);
 		text = parts[4];
+		codeWords = encode(cache);
+	}
 
-		switch (type) {
-		case 5:
-			// numeric
-			// #00 5:1:9C8:0:094016 130412
-			codeWords = Pocsag.encodeNumber(address, function, text);
-			break;
-		case 6:
-			// alpha numeric
-			codeWords = Pocsag.encodeText(address, function, text);
-			break;
-		default:
-			throw new IllegalArgumentException("Invalid message type: " + type);
+	public Message(int type, int speed, int address, int function, CharSequence text, EncodedMessageCache cache) {
+		this.type = type;
+		this.speed = speed;
+		this.address = address;
+		this.function = function;
+		this.text = text.toString();
+		this.codeWords = encode(cache);
+	}
+
+	private CodeWordBuffer encode(EncodedMessageCache cache) {
+		if (cache != null) {
+			return cache.get(type, address, function, text);
 		}
+
+		return EncodedMessageCache.encode(type, address, function, text);
 	}
 
 	public int getType() {
@@ -60,7 +70,12 @@ final class Message {
 		return text;
 	}
 
-	public List<Integer> getCodeWords() {
+	/**
+	 * Gets the encoded message.
+	 * 
+	 * @return Code words of the message.
+	 */
+	public CodeWordBuffer getCodeWords() {
 		return codeWords;
 	}
 }
@@ -0,0 +1,384 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Message queue merging the messages of several sources (e.g. one per master
+ * connection). Each source has its own FIFO queue and the sources are served
+ * in weighted round robin order, so a source flooding the queue cannot starve
+ * the others. The capacity bounds the total number of queued messages, the
+ * source capacity the share of a single source.
+ */
+final class MessageQueue implements MessageQueueMXBean {
+	/**
+	 * Defines what happens if a message is added to a full queue.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The new message is rejected and the master has to retry later.
+		 */
+		RETRY,
+		/**
+		 * The oldest queued message is dropped.
+		 */
+		DROP_OLDEST
+	}
+
+	/**
+	 * Message source with its own queue. All methods synchronize on the
+	 * owning message queue.
+	 */
+	public final class Source {
+		private final String name;
+		private final int weight;
+		private final Deque<Message> messages = new ArrayDeque<>();
+		private boolean closed = false;
+		private long receivedCount = 0;
+		private long rejectedCount = 0;
+		private long droppedCount = 0;
+
+		private Source(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+		}
+
+		/**
+		 * Adds a message to the end of the queue of this source. If this
+		 * source or the whole queue is full, the message is either rejected
+		 * or the oldest message of this source respectively of the source
+		 * with the most queued messages is dropped.
+		 * 
+		 * @param message
+		 *            Message to add.
+		 * @return False if the source is closed or the queue is full and the
+		 *         message was rejected.
+		 */
+		public boolean offer(Message message) {
+			synchronized (MessageQueue.this) {
+				if (closed) {
+					return false;
+				}
+
+				while (messages.size() >= sourceCapacity || size >= capacity) {
+					Source victim = messages.size() >= sourceCapacity ? this : getLongestSource();
+					// The queue may be filled with returned messages only
+					if (policy == OverflowPolicy.RETRY || victim.messages.isEmpty()) {
+						++rejectedCount;
+						++totalRejected;
+						return false;
+					}
+
+					victim.messages.pollFirst();
+					--size;
+					++victim.droppedCount;
+					++totalDropped;
+					log.log(Level.FINE, "Queue full, dropped oldest message of {0}.", victim.name);
+
+					if (victim.closed && victim.messages.isEmpty()) {
+						removeSource(victim);
+					}
+				}
+
+				messages.addLast(message);
+				++size;
+				++receivedCount;
+				return true;
+			}
+		}
+
+		/**
+		 * Closes the source. Messages already queued are still sent, a source
+		 * without queued messages is removed immediately.
+		 */
+		public void close() {
+			synchronized (MessageQueue.this) {
+				closed = true;
+				if (messages.isEmpty()) {
+					removeSource(this);
+				}
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		/**
+		 * Gets the number of accepted messages.
+		 * 
+		 * @return Number of messages.
+		 */
+		public long getReceivedCount() {
+			synchronized (MessageQueue.this) {
+				return receivedCount;
+			}
+		}
+
+		/**
+		 * Gets the number of messages rejected because the queue was full.
+		 * 
+		 * @return Number of rejected messages.
+		 */
+		public long getRejectedCount() {
+			synchronized (MessageQueue.this) {
+				return rejectedCount;
+			}
+		}
+
+		/**
+		 * Gets the number of messages dropped because the queue was full.
+		 * 
+		 * @return Number of dropped messages.
+		 */
+		public long getDroppedCount() {
+			synchronized (MessageQueue.this) {
+				return droppedCount;
+			}
+		}
+
+		@Override
+		public String toString() {
+			synchronized (MessageQueue.this) {
+				return String.format("%s: received %d, rejected %d, dropped %d", name, receivedCount,
+						rejectedCount, droppedCount);
+			}
+		}
+	}
+
+	private static final Logger log = Logger.getLogger(MessageQueue.class.getName());
+	private final List<Source> sources = new ArrayList<>();
+	// Messages returned by the scheduler, sent before all others
+	private final Deque<Message> returned = new ArrayDeque<>();
+	private final int capacity;
+	private final int sourceCapacity;
+	private final OverflowPolicy policy;
+	private int size = 0;
+	// Round robin state
+	private int current = 0;
+	private int credit = 0;
+	private long totalRejected = 0;
+	private long totalDropped = 0;
+
+	/**
+	 * Creates a new message queue without a separate limit per source.
+	 * 
+	 * @param capacity
+	 *            Maximum number of queued messages.
+	 * @param policy
+	 *            Overflow policy.
+	 * @throws IllegalArgumentException
+	 *             If the capacity is less than 1.
+	 */
+	public MessageQueue(int capacity, OverflowPolicy policy) {
+		this(capacity, capacity, policy);
+	}
+
+	/**
+	 * Creates a new message queue.
+	 * 
+	 * @param capacity
+	 *            Maximum number of queued messages of all sources.
+	 * @param sourceCapacity
+	 *            Maximum number of queued messages per source.
+	 * @param policy
+	 *            Overflow policy.
+	 * @throws IllegalArgumentException
+	 *             If a capacity is less than 1.
+	 */
+	public MessageQueue(int capacity, int sourceCapacity, OverflowPolicy policy) {
+		if (capacity < 1 || sourceCapacity < 1) {
+			throw new IllegalArgumentException("Invalid capacity.");
+		}
+
+		this.capacity = capacity;
+		this.sourceCapacity = Math.min(sourceCapacity, capacity);
+		this.policy = policy;
+	}
+
+	/**
+	 * Adds a new source.
+	 * 
+	 * @param name
+	 *            Name of the source.
+	 * @param weight
+	 *            Number of messages taken from this source per round.
+	 * @return New source.
+	 */
+	public synchronized Source addSource(String name, int weight) {
+		Source source = new Source(name, Math.max(1, weight));
+		sources.add(source);
+
+		// The first source gets its full turn right away
+		if (sources.size() == 1) {
+			current = 0;
+			credit = source.weight;
+		}
+
+		return source;
+	}
+
+	/**
+	 * Removes a source and keeps the round robin position.
+	 * 
+	 * @param source
+	 *            Source to remove.
+	 */
+	private void removeSource(Source source) {
+		int index = sources.indexOf(source);
+		if (index < 0) {
+			return;
+		}
+
+		sources.remove(index);
+		if (sources.isEmpty()) {
+			current = 0;
+			credit = 0;
+		} else if (index < current) {
+			--current;
+		} else if (index == current && !sources.isEmpty()) {
+			credit = sources.get(current % sources.size()).weight;
+		}
+	}
+
+	/**
+	 * Gets the source with the most queued messages.
+	 * 
+	 * @return Source or null if there are no sources.
+	 */
+	private Source getLongestSource() {
+		Source longest = null;
+		for (Source source : sources) {
+			if (longest == null || source.messages.size() > longest.messages.size()) {
+				longest = source;
+			}
+		}
+
+		return longest;
+	}
+
+	/**
+	 * Returns a message to the head of the queue. This never fails, even if
+	 * the queue is full.
+	 * 
+	 * @param message
+	 *            Message to return.
+	 */
+	public synchronized void pushBack(Message message) {
+		returned.addFirst(message);
+		++size;
+	}
+
+	/**
+	 * Removes the next message. Returned messages come first, then the
+	 * sources are served in weighted round robin order.
+	 * 
+	 * @return Message or null if the queue is empty.
+	 */
+	public synchronized Message poll() {
+		if (!returned.isEmpty()) {
+			--size;
+			return returned.pollFirst();
+		}
+
+		// Each source is visited at most once, plus the current one again
+		// after its credit is used up.
+		for (int i = 0; i <= sources.size() && !sources.isEmpty(); ++i) {
+			if (current >= sources.size()) {
+				current = 0;
+			}
+
+			Source source = sources.get(current);
+			if (credit > 0 && !source.messages.isEmpty()) {
+				--credit;
+				--size;
+				return source.messages.pollFirst();
+			}
+
+			// Sources closed while still holding messages are removed here
+			if (source.closed && source.messages.isEmpty()) {
+				sources.remove(current);
+			} else {
+				++current;
+			}
+
+			if (!sources.isEmpty()) {
+				credit = sources.get(current % sources.size()).weight;
+			}
+		}
+
+		return null;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	@Override
+	public int getSize() {
+		return size();
+	}
+
+	@Override
+	public synchronized int getSourceCount() {
+		return sources.size();
+	}
+
+	/**
+	 * Removes all messages. Sources stay registered.
+	 */
+	public synchronized void clear() {
+		returned.clear();
+		for (Source source : sources) {
+			source.messages.clear();
+		}
+
+		size = 0;
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public int getSourceCapacity() {
+		return sourceCapacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Gets the number of messages rejected because a queue was full.
+	 * 
+	 * @return Number of rejected messages.
+	 */
+	@Override
+	public synchronized long getRejectedCount() {
+		return totalRejected;
+	}
+
+	/**
+	 * Gets the number of messages dropped because a queue was full.
+	 * 
+	 * @return Number of dropped messages.
+	 */
+	@Override
+	public synchronized long getDroppedCount() {
+		return totalDropped;
+	}
+}
@@ -0,0 +1,18 @@
+package de.rwth_aachen.afu.raspager;
+
+/**
+ * Management interface of the {@link MessageQueue}.
+ */
+public interface MessageQueueMXBean {
+	int getSize();
+
+	int getCapacity();
+
+	int getSourceCapacity();
+
+	int getSourceCount();
+
+	long getRejectedCount();
+
+	long getDroppedCount();
+}
@@ -0,0 +1,90 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Serves the metrics on {@code GET /metrics}. Request bodies are ignored.
+ */
+@Sharable
+final class MetricsHandler extends SimpleChannelInboundHandler<HttpObject> {
+	private static final Logger log = Logger.getLogger(MetricsHandler.class.getName());
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private static final String PATH = "/metrics";
+	private final MetricsRenderer renderer;
+	// Size of the last response, used as the initial buffer size
+	private volatile int lastSize = 4096;
+
+	public MetricsHandler(MetricsRenderer renderer) {
+		this.renderer = renderer;
+	}
+
+	@Override
+	protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+		if (!(msg instanceof HttpRequest)) {
+			return;
+		}
+
+		HttpRequest request = (HttpRequest) msg;
+		HttpMethod method = request.method();
+		String uri = request.uri();
+		boolean pathMatches = uri.equals(PATH) || uri.startsWith(PATH + "?");
+
+		FullHttpResponse response;
+		int length = 0;
+		if (!pathMatches) {
+			response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+		} else if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)) {
+			response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED);
+		} else {
+			ByteBuf content = ctx.alloc().buffer(lastSize);
+			try {
+				renderer.render(content);
+			} catch (Throwable t) {
+				content.release();
+				throw t;
+			}
+
+			length = content.readableBytes();
+			lastSize = length;
+			// HEAD gets the headers of GET without the body
+			if (HttpMethod.HEAD.equals(method)) {
+				content.clear();
+			}
+
+			response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+			response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+		}
+
+		HttpUtil.setContentLength(response, Math.max(length, response.content().readableBytes()));
+
+		if (HttpUtil.isKeepAlive(request)) {
+			response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+			ctx.writeAndFlush(response);
+		} else {
+			ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+		}
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+		log.log(Level.WARNING, "Metrics request failed.", cause);
+		ctx.close();
+	}
+}
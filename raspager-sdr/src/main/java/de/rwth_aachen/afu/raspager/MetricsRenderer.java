@@ -0,0 +1,220 @@
+package de.rwth_aachen.afu.raspager;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Writes the metrics in the Prometheus text format. Everything is written
+ * directly into the output buffer, so a scrape does not build any strings.
+ */
+final class MetricsRenderer {
+	// Histogram bucket bounds from 1 ms to 2 minutes (16 slots)
+	private static final long[] BOUNDS_MICROS = { 1_000, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+			1_000_000, 2_500_000, 5_000_000, 10_000_000, 30_000_000, 60_000_000, 120_000_000 };
+	private static final byte[][] BOUND_LABELS = ascii("0.001", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25",
+			"0.5", "1", "2.5", "5", "10", "30", "60", "120");
+	private static final byte[] INF_LABEL = ascii("+Inf")[0];
+	private final MessageQueue queue;
+	private final SchedulerStatistics statistics;
+	private final EncodedMessageCache cache;
+	private volatile Server server;
+	private volatile TimeSlots slots;
+	// Scratch space, only used while holding the lock
+	private final long[] counts = new long[BOUNDS_MICROS.length];
+	private final byte[] digits = new byte[20];
+
+	/**
+	 * Creates a new renderer.
+	 * 
+	 * @param queue
+	 *            Message queue.
+	 * @param statistics
+	 *            Scheduler statistics.
+	 * @param cache
+	 *            Cache of encoded messages.
+	 */
+	public MetricsRenderer(MessageQueue queue, SchedulerStatistics statistics, EncodedMessageCache cache) {
+		this.queue = queue;
+		this.statistics = statistics;
+		this.cache = cache;
+	}
+
+	/**
+	 * Sets the server providing the network metrics.
+	 * 
+	 * @param server
+	 *            Server or null if not running.
+	 */
+	public void setServer(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Sets the time slots of the running scheduler.
+	 * 
+	 * @param slots
+	 *            Time slots or null if not running.
+	 */
+	public void setTimeSlots(TimeSlots slots) {
+		this.slots = slots;
+	}
+
+	/**
+	 * Writes all metrics.
+	 * 
+	 * @param out
+	 *            Buffer receiving the metrics.
+	 */
+	public synchronized void render(ByteBuf out) {
+		Server srv = server;
+		if (srv != null) {
+			counter(out, "raspager_messages_received_total", "Messages received from masters.",
+					srv.getReceivedMessages());
+			counter(out, "raspager_messages_duplicate_total", "Duplicate messages not queued.",
+					srv.getDuplicateMessages());
+			gauge(out, "raspager_connections", "Open master connections.", srv.getConnectionCount());
+			counter(out, "raspager_connections_rejected_total", "Connections rejected by filter and limits.",
+					srv.getRejectedByFilter() + srv.getRejectedByRate() + srv.getRejectedByLimit());
+
+			gauge(out, "raspager_buffer_direct_arenas", "Direct arenas of the network buffer pool.",
+					srv.getDirectArenas());
+			gauge(out, "raspager_buffer_heap_arenas", "Heap arenas of the network buffer pool.", srv.getHeapArenas());
+			gauge(out, "raspager_buffer_direct_active", "Direct network buffers in use.",
+					srv.getActiveDirectBuffers());
+			gauge(out, "raspager_buffer_heap_active", "Heap network buffers in use.", srv.getActiveHeapBuffers());
+			gauge(out, "raspager_buffer_direct_bytes", "Direct memory used by network buffers.",
+					srv.getUsedDirectMemory());
+			gauge(out, "raspager_buffer_heap_bytes", "Heap memory used by network buffers.", srv.getUsedHeapMemory());
+		}
+
+		gauge(out, "raspager_queue_size", "Messages waiting for transmission.", queue.size());
+		counter(out, "raspager_messages_rejected_total", "Messages rejected because the queue was full.",
+				queue.getRejectedCount());
+		counter(out, "raspager_messages_dropped_total", "Messages dropped because the queue was full.",
+				queue.getDroppedCount());
+		counter(out, "raspager_messages_sent_total", "Messages sent.", statistics.getMessagesSent());
+		gauge(out, "raspager_message_cache_size", "Encoded messages in the cache.", cache.size());
+		counter(out, "raspager_message_cache_hits_total", "Messages found in the encoded message cache.",
+				cache.getHitCount());
+		counter(out, "raspager_message_cache_misses_total", "Messages encoded because they were not cached.",
+				cache.getMissCount());
+
+		TimeSlots ts = slots;
+		if (ts != null) {
+			gauge(out, "raspager_slots_allowed", "Time slots assigned to this transmitter.",
+					ts.getAllowedCount());
+		}
+
+		counter(out, "raspager_transmissions_total", "Transmissions.", statistics.getTransmissions());
+		header(out, "raspager_on_air_seconds_total", "Time the transmitter was on air.", "counter");
+		sample(out, "raspager_on_air_seconds_total", statistics.getOnAirMillis(), "e-3");
+		header(out, "raspager_batch_fill_ratio", "Ratio of message code words to all batch code words.", "gauge");
+		sample(out, "raspager_batch_fill_ratio", Math.round(statistics.getBatchFillRatio() * 1_000_000), "e-6");
+		counter(out, "raspager_encode_overruns_total", "Encodes exceeding the time before the slot.",
+				statistics.getEncodeOverruns());
+		counter(out, "raspager_late_slot_starts_total", "Transmissions starting late in the slot.",
+				statistics.getLateSlotStarts());
+		counter(out, "raspager_audio_underruns_total", "Audio buffer underruns while streaming.",
+				statistics.getAudioUnderruns());
+		counter(out, "raspager_pcm_bytes_total", "PCM bytes produced.", statistics.getPcmBytes());
+
+		histogram(out, "raspager_encode_seconds", "Time to encode the data of a transmission.",
+				statistics.getEncodeTimeHistogram());
+		histogram(out, "raspager_ptt_latency_seconds", "Time from keying the transmitter to the first sample.",
+				statistics.getPttLatencyHistogram());
+		histogram(out, "raspager_slot_lateness_seconds", "Time from the slot start to the transmission start.",
+				statistics.getSlotLatenessHistogram());
+		histogram(out, "raspager_playback_seconds", "Duration of transmissions.",
+				statistics.getPlaybackTimeHistogram());
+	}
+
+	private void counter(ByteBuf out, String name, String help, long value) {
+		header(out, name, help, "counter");
+		sample(out, name, value, null);
+	}
+
+	private void gauge(ByteBuf out, String name, String help, long value) {
+		header(out, name, help, "gauge");
+		sample(out, name, value, null);
+	}
+
+	private void histogram(ByteBuf out, String name, String help, LatencyHistogram histogram) {
+		long count = histogram.getCumulativeCounts(BOUNDS_MICROS, counts);
+		long sum = histogram.getSumMicros();
+
+		header(out, name, help, "histogram");
+		for (int i = 0; i < counts.length; ++i) {
+			bucket(out, name, BOUND_LABELS[i], counts[i]);
+		}
+		bucket(out, name, INF_LABEL, count);
+
+		out.writeCharSequence(name, CharsetUtil.US_ASCII);
+		out.writeCharSequence("_sum ", CharsetUtil.US_ASCII);
+		writeLong(out, sum);
+		out.writeCharSequence("e-6\n", CharsetUtil.US_ASCII);
+
+		out.writeCharSequence(name, CharsetUtil.US_ASCII);
+		out.writeCharSequence("_count ", CharsetUtil.US_ASCII);
+		writeLong(out, count);
+		out.writeByte('\n');
+	}
+
+	private void bucket(ByteBuf out, String name, byte[] label, long value) {
+		out.writeCharSequence(name, CharsetUtil.US_ASCII);
+		out.writeCharSequence("_bucket{le=\"", CharsetUtil.US_ASCII);
+		out.writeBytes(label);
+		out.writeCharSequence("\"} ", CharsetUtil.US_ASCII);
+		writeLong(out, value);
+		out.writeByte('\n');
+	}
+
+	private static void header(ByteBuf out, String name, String help, String type) {
+		out.writeCharSequence("# HELP ", CharsetUtil.US_ASCII);
+		out.writeCharSequence(name, CharsetUtil.US_ASCII);
+		out.writeByte(' ');
+		out.writeCharSequence(help, CharsetUtil.US_ASCII);
+		out.writeCharSequence("\n# TYPE ", CharsetUtil.US_ASCII);
+		out.writeCharSequence(name, CharsetUtil.US_ASCII);
+		out.writeByte(' ');
+		out.writeCharSequence(type, CharsetUtil.US_ASCII);
+		out.writeByte('\n');
+	}
+
+	/**
+	 * Writes a sample, the value is multiplied by 10^exponent if an exponent
+	 * is given.
+	 */
+	private void sample(ByteBuf out, String name, long value, String exponent) {
+		out.writeCharSequence(name, CharsetUtil.US_ASCII);
+		out.writeByte(' ');
+		writeLong(out, value);
+		if (exponent != null) {
+			out.writeCharSequence(exponent, CharsetUtil.US_ASCII);
+		}
+		out.writeByte('\n');
+	}
+
+	private void writeLong(ByteBuf out, long value) {
+		if (value < 0) {
+			out.writeByte('-');
+			value = -value;
+		}
+
+		int pos = digits.length;
+		do {
+			digits[--pos] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+
+		out.writeBytes(digits, pos, digits.length - pos);
+	}
+
+	private static byte[][] ascii(String... values) {
+		byte[][] result = new byte[values.length][];
+		for (int i = 0; i < values.length; ++i) {
+			result[i] = values[i].getBytes(CharsetUtil.US_ASCII);
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,90 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpServerCodec;
+
+/**
+ * HTTP server providing the metrics for Prometheus. It runs on its own port
+ * and thread, so scrapes do not interfere with the master connections.
+ */
+final class MetricsServer implements Runnable {
+	private static final Logger log = Logger.getLogger(MetricsServer.class.getName());
+	private final MetricsHandler handler;
+	private final String address;
+	private final int port;
+	private volatile ChannelFuture serverFuture;
+
+	/**
+	 * Creates a new metrics server.
+	 * 
+	 * @param address
+	 *            Address to bind to or null for all addresses.
+	 * @param port
+	 *            Port to listen on.
+	 * @param renderer
+	 *            Renderer providing the metrics.
+	 */
+	public MetricsServer(String address, int port, MetricsRenderer renderer) {
+		this.address = address;
+		this.port = port;
+		this.handler = new MetricsHandler(renderer);
+	}
+
+	@Override
+	public void run() {
+		EventLoopGroup group = new NioEventLoopGroup(1);
+
+		try {
+			ServerBootstrap b = new ServerBootstrap();
+			b.group(group);
+			b.channel(NioServerSocketChannel.class);
+			b.childHandler(new ChannelInitializer<SocketChannel>() {
+				@Override
+				protected void initChannel(SocketChannel ch) throws Exception {
+					ChannelPipeline pip = ch.pipeline();
+					pip.addLast("codec", new HttpServerCodec());
+					pip.addLast("metrics", handler);
+				}
+			});
+
+			if (address != null) {
+				serverFuture = b.bind(address, port).sync();
+			} else {
+				serverFuture = b.bind(port).sync();
+			}
+
+			log.log(Level.INFO, "Metrics available on port {0}.", port);
+			serverFuture.channel().closeFuture().sync();
+		} catch (InterruptedException e) {
+			log.log(Level.SEVERE, "Metrics server interrupted.", e);
+		} catch (Throwable t) {
+			log.log(Level.SEVERE, "Exception in metrics server.", t);
+		} finally {
+			group.shutdownGracefully();
+		}
+	}
+
+	/**
+	 * Stops the server if it is running. This method will block until the
+	 * server is stopped.
+	 */
+	public void shutdown() {
+		try {
+			if (serverFuture != null) {
+				serverFuture.channel().close().sync();
+			}
+		} catch (InterruptedException e) {
+			log.log(Level.WARNING, "Close interrupted.", e);
+		}
+	}
+}
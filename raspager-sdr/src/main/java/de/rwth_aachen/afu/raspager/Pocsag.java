@@ -1,8 +1,5 @@
 package de.rwth_aachen.afu.raspager;
 
-import java.util.ArrayList;
-import java.util.List;
-
 final class Pocsag {
 	private static final char[] isotab = { 0x00, 0x40, 0x20, 0x60, 0x10, 0x50, 0x30, 0x70, 0x08, 0x48, 0x28, 0x68, 0x18,
 			0x58, 0x38, 0x78, 0x04, 0x44, 0x24, 0x64, 0x14, 0x54, 0x34, 0x74, 0x0c, 0x4c, 0x2c, 0x6c, 0x1c, 0x5c, 0x3c,
@@ -31,17 +28,35 @@ final class Pocsag {
 	public static final int SYNC = 0x7CD215D8; // sync-codeword
 	public static final int IDLE = 0x7A89C197; // idle-codeword
 
-	public static int crc(int cw) {
-		int crc;
-		int d;
-		int m;
-		char p;
-
-		// crc
-		crc = cw;
-		d = 0xed200000;
+	// BCH(31,21) check bits plus even parity for each 7 bit slice of the 21
+	// data bits (31..25, 24..18, 17..11). Bits 10..1 hold the check bits,
+	// bit 0 the parity of the slice including its check bits. As the code is
+	// linear the tables can simply be combined using XOR.
+	private static final int[] crcHigh = new int[128];
+	private static final int[] crcMid = new int[128];
+	private static final int[] crcLow = new int[128];
+
+	static {
+		for (int i = 0; i < 128; ++i) {
+			crcHigh[i] = crcSlice(i << 25);
+			crcMid[i] = crcSlice(i << 18);
+			crcLow[i] = crcSlice(i << 11);
+		}
+	}
 
-		for (m = 0x80000000; (m & 0x400) == 0; m >>>= 1) {
+	/**
+	 * Calculates the BCH check bits and the parity for the data bits of a
+	 * single slice using the polynomial division.
+	 * 
+	 * @param cw
+	 *            Code word containing only the data bits of the slice.
+	 * @return Check bits and parity bit of the slice.
+	 */
+	private static int crcSlice(int cw) {
+		int crc = cw;
+		int d = 0xed200000;
+
+		for (int m = 0x80000000; (m & 0x400) == 0; m >>>= 1) {
 			// m ist Bitmaske mit nur einer 1, die vom MSB bis vor den Anfang
 			// des (CRC+Praität) bereichs läuft, d.h. bis Bit 11 einschl.
 			if ((crc & m) != 0)
@@ -50,18 +65,45 @@ final class Pocsag {
 			d >>>= 1;
 		}
 
-		cw |= crc;
+		return crc | (Integer.bitCount(cw | crc) & 1);
+	}
 
-		// parity
+	/**
+	 * Adds the BCH check bits and the parity bit to a code word.
+	 * 
+	 * @param cw
+	 *            Code word with the data in bits 31 to 11.
+	 * @return Complete code word.
+	 */
+	public static int crc(int cw) {
+		int check = crcHigh[cw >>> 25] ^ crcMid[(cw >>> 18) & 0x7f] ^ crcLow[(cw >>> 11) & 0x7f];
+		int low = cw & 0x7ff;
 
-		p = (char) (((cw >>> 24) & 0xff) ^ ((cw >>> 16) & 0xff) ^ ((cw >>> 8) & 0xff) ^ (cw & 0xff));
+		if (low == 0) {
+			return cw | check;
+		}
 
-		p ^= (p >>> 4);
-		p ^= (p >>> 2);
-		p ^= (p >>> 1);
-		p &= 0x01;
+		// Bits below the data bits should never be set, but handle them the
+		// same way the polynomial division does.
+		cw |= low ^ (check & 0x7fe);
+		return cw | (Integer.bitCount(cw) & 1);
+	}
 
-		return cw | p;
+	/**
+	 * Adds the BCH check bits and the parity bit to a number of code words.
+	 * 
+	 * @param src
+	 *            Code words with the data in bits 31 to 11.
+	 * @param dst
+	 *            Array receiving the complete code words (may be the same as
+	 *            src).
+	 * @param n
+	 *            Number of code words to process.
+	 */
+	public static void crc(int[] src, int[] dst, int n) {
+		for (int i = 0; i < n; ++i) {
+			dst[i] = crc(src[i]);
+		}
 	}
 
 	public static int encodeACW(int addr, int func) {
@@ -106,16 +148,15 @@ final class Pocsag {
 		return 0x05;
 	}
 
-	public static List<Integer> encodeNumber(int addr, int func, String text) {
-		List<Integer> cwBuf = new ArrayList<>();
+	public static CodeWordBuffer encodeNumber(int addr, int func, CharSequence text) {
+		CodeWordBuffer cwBuf = new CodeWordBuffer(2 + text.length() / 5);
 		int msg = 0;
 		int msgBitsLeft;
 
-		int framePos = addr & 7;
-		cwBuf.add(framePos); // position 0
+		cwBuf.setFramePos(addr & 7);
 
 		// Adress-Codewort erzeugen und im Puffer speichern.
-		cwBuf.add(crc(encodeACW(addr, func)));
+		cwBuf.add(encodeACW(addr, func));
 
 		// Komplette Nachricht codieren und speichern.
 		msgBitsLeft = POC_BITS_PER_CW;
@@ -128,7 +169,7 @@ final class Pocsag {
 			msgBitsLeft -= POC_BITS_PER_DIGIT;
 
 			if (msgBitsLeft == 0) {
-				cwBuf.add(crc(encodeMCW(msg)));
+				cwBuf.add(encodeMCW(msg));
 				msgBitsLeft = POC_BITS_PER_CW;
 			}
 		}
@@ -142,22 +183,24 @@ final class Pocsag {
 				msgBitsLeft -= POC_BITS_PER_DIGIT;
 			}
 
-			cwBuf.add(crc(encodeMCW(msg)));
+			cwBuf.add(encodeMCW(msg));
 		}
 
+		// BCH und Paritaet fuer alle Codewoerter berechnen.
+		crc(cwBuf.array(), cwBuf.array(), cwBuf.size());
+
 		return cwBuf;
 	}
 
-	public static List<Integer> encodeText(int addr, int func, String text) {
-		List<Integer> cwBuf = new ArrayList<>();
+	public static CodeWordBuffer encodeText(int addr, int func, CharSequence text) {
+		CodeWordBuffer cwBuf = new CodeWordBuffer(2 + text.length() * POC_BITS_PER_CHAR / POC_BITS_PER_CW);
 		int msg = 0;
 		int msgBitsLeft;
 
-		int framePos = addr & 7;
-		cwBuf.add(framePos); // position 0
+		cwBuf.setFramePos(addr & 7);
 
 		// Adress-Codewort erzeugen und im Puffer speichern.
-		cwBuf.add(crc(encodeACW(addr, func)));
+		cwBuf.add(encodeACW(addr, func));
 
 		// Komplette Nachricht codieren und speichern.
 		msgBitsLeft = POC_BITS_PER_CW;
@@ -171,14 +214,14 @@ final class Pocsag {
 				msgBitsLeft -= POC_BITS_PER_CHAR;
 
 				if (msgBitsLeft == 0) {
-					cwBuf.add(crc(encodeMCW(msg)));
+					cwBuf.add(encodeMCW(msg));
 					msgBitsLeft = POC_BITS_PER_CW;
 				}
 			} else {
 				msg <<= msgBitsLeft;
 				msg |= ch >> (POC_BITS_PER_CHAR - msgBitsLeft);
 
-				cwBuf.add(crc(encodeMCW(msg)));
+				cwBuf.add(encodeMCW(msg));
 
 				msg = ch;
 				msgBitsLeft = POC_BITS_PER_CW - POC_BITS_PER_CHAR + msgBitsLeft;
@@ -187,9 +230,12 @@ final class Pocsag {
 
 		if (msgBitsLeft != POC_BITS_PER_CW) {
 			msg <<= msgBitsLeft;
-			cwBuf.add(crc(encodeMCW(msg)));
+			cwBuf.add(encodeMCW(msg));
 		}
 
+		// BCH und Paritaet fuer alle Codewoerter berechnen.
+		crc(cwBuf.array(), cwBuf.array(), cwBuf.size());
+
 		return cwBuf;
 	}
 
@@ -0,0 +1,206 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.ByteProcessor;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Decodes the line based master protocol directly from the received bytes
+ * into a {@link Command}. The same command instance is reused for every
+ * line, so one decoder must be created per channel.
+ */
+final class ProtocolDecoder extends ByteToMessageDecoder {
+	private static final Logger log = Logger.getLogger(ProtocolDecoder.class.getName());
+	private final Command command = new Command();
+	private final int maxLength;
+
+	/**
+	 * Creates a new decoder.
+	 * 
+	 * @param maxLength
+	 *            Maximum line length in bytes.
+	 */
+	public ProtocolDecoder(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+		int start = in.readerIndex();
+		int eol = in.forEachByte(ByteProcessor.FIND_LF);
+		if (eol < 0) {
+			if (in.readableBytes() > maxLength) {
+				in.skipBytes(in.readableBytes());
+				throw new TooLongFrameException("Line exceeds " + maxLength + " bytes.");
+			}
+
+			return;
+		}
+
+		in.readerIndex(eol + 1);
+
+		int end = eol;
+		if (end > start && in.getByte(end - 1) == '\r') {
+			--end;
+		}
+
+		if (end - start > maxLength) {
+			throw new TooLongFrameException("Line exceeds " + maxLength + " bytes.");
+		}
+
+		if (end == start) {
+			log.warning("Received empty request.");
+			return;
+		}
+
+		byte type = in.getByte(start);
+		switch (type) {
+		case '#':
+			decodeMessage(in, start, end);
+			break;
+		case '2':
+			decodeText(in, start, end, Command.Type.MASTER_IDENTIFY);
+			break;
+		case '3':
+			decodeTimeCorrection(in, start, end);
+			break;
+		case '4':
+			decodeText(in, start, end, Command.Type.TIME_SLOTS);
+			break;
+		default:
+			log.log(Level.WARNING, "Invalid message type: {0}", (char) type);
+			command.reset(Command.Type.INVALID);
+		}
+
+		out.add(command);
+	}
+
+	/**
+	 * Decodes {@code #xx type:speed:addr:func:text}.
+	 */
+	private void decodeMessage(ByteBuf in, int start, int end) {
+		command.reset(Command.Type.MESSAGE);
+
+		int typeEnd = in.indexOf(start, end, (byte) ':');
+		int speedEnd = typeEnd < 0 ? -1 : in.indexOf(typeEnd + 1, end, (byte) ':');
+		int addrEnd = speedEnd < 0 ? -1 : in.indexOf(speedEnd + 1, end, (byte) ':');
+		int funcEnd = addrEnd < 0 ? -1 : in.indexOf(addrEnd + 1, end, (byte) ':');
+		if (funcEnd < 0 || typeEnd - start < 5) {
+			invalid("Incomplete message.");
+			return;
+		}
+
+		int id = parseInt(in, start + 1, start + 3, 16);
+		int speed = parseInt(in, typeEnd + 1, speedEnd, 10);
+		int address = parseInt(in, speedEnd + 1, addrEnd, 16);
+		int function = parseInt(in, addrEnd + 1, funcEnd, 10);
+		if (id < 0 || speed < 0 || address < 0 || function < 0) {
+			invalid("Invalid number in message.");
+			return;
+		}
+
+		command.setMessageId(id);
+		command.setMessageType(in.getByte(start + 4) - '0');
+		command.setSpeed(speed);
+		command.setAddress(address);
+		command.setFunction(function);
+		appendText(in, funcEnd + 1, end);
+	}
+
+	/**
+	 * Decodes {@code 3:+xxxx} and {@code 3:-xxxx}.
+	 */
+	private void decodeTimeCorrection(ByteBuf in, int start, int end) {
+		command.reset(Command.Type.TIME_CORRECTION);
+
+		int pos = start + 1;
+		if (pos >= end || in.getByte(pos) != ':') {
+			invalid("Missing time correction.");
+			return;
+		}
+
+		++pos;
+		boolean negative = false;
+		if (pos < end && (in.getByte(pos) == '+' || in.getByte(pos) == '-')) {
+			negative = in.getByte(pos) == '-';
+			++pos;
+		}
+
+		int value = parseInt(in, pos, end, 16);
+		if (value < 0) {
+			invalid("Invalid time correction.");
+			return;
+		}
+
+		command.setValue(negative ? -value : value);
+	}
+
+	/**
+	 * Decodes commands of the form {@code n:text}.
+	 */
+	private void decodeText(ByteBuf in, int start, int end, Command.Type type) {
+		command.reset(type);
+
+		int pos = start + 1;
+		if (pos >= end || in.getByte(pos) != ':') {
+			invalid("Missing separator.");
+			return;
+		}
+
+		appendText(in, pos + 1, end);
+	}
+
+	private void invalid(String reason) {
+		log.warning(reason);
+		command.reset(Command.Type.INVALID);
+	}
+
+	/**
+	 * Parses a non-negative number.
+	 * 
+	 * @return Parsed number or -1 if the range is empty, contains invalid
+	 *         digits or the value overflows.
+	 */
+	private static int parseInt(ByteBuf in, int start, int end, int radix) {
+		if (start >= end) {
+			return -1;
+		}
+
+		int value = 0;
+		for (int i = start; i < end; ++i) {
+			int digit = Character.digit((char) in.getByte(i), radix);
+			if (digit < 0 || value > (Integer.MAX_VALUE - digit) / radix) {
+				return -1;
+			}
+
+			value = value * radix + digit;
+		}
+
+		return value;
+	}
+
+	/**
+	 * Appends text to the command. Plain ASCII is copied byte by byte, other
+	 * text is decoded as UTF-8.
+	 */
+	private void appendText(ByteBuf in, int start, int end) {
+		StringBuilder text = command.getText();
+
+		for (int i = start; i < end; ++i) {
+			byte b = in.getByte(i);
+			if (b < 0) {
+				text.append(in.toString(i, end - i, CharsetUtil.UTF_8));
+				return;
+			}
+
+			text.append((char) b);
+		}
+	}
+}
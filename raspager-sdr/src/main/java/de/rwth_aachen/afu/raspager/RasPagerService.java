@@ -2,32 +2,59 @@ package de.rwth_aachen.afu.raspager;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Deque;
-import java.util.Timer;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import de.rwth_aachen.afu.raspager.sdr.SDRTransmitter;
+import de.rwth_aachen.afu.raspager.sdr.VirtualTransmitter;
 
 final class RasPagerService {
 	private static final Logger log = Logger.getLogger(RasPagerService.class.getName());
 
 	private static final float DEFAULT_SEARCH_STEP_SIZE = 0.05f;
+	private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	private static final int DEFAULT_STATS_INTERVAL = 900;
+	private static final int DEFAULT_MESSAGE_CACHE_SIZE = 256;
+	private static final String MBEAN_DOMAIN = "de.rwth_aachen.afu.raspager";
 	private float searchStepSize = DEFAULT_SEARCH_STEP_SIZE;
 	private ThreadWrapper<Server> server;
 	private boolean running = false;
 
-	private Timer timer = new Timer();
-	private final Deque<Message> messages = new ConcurrentLinkedDeque<>();
-	private final SDRTransmitter transmitter = new SDRTransmitter();
+	private ScheduledExecutorService executor;
+	// Periodic statistics log, kept off the timing critical scheduler thread
+	private ScheduledExecutorService statsExecutor;
+	private final MessageQueue messages;
+	private DuplicateFilter duplicateFilter;
+	private final EncodedMessageCache messageCache;
+	private final Transmitter transmitter;
 	private final Configuration config;
 	private final RasPagerWindow window;
 	private Scheduler scheduler;
+	// Kept across scheduler restarts
+	private final SchedulerStatistics statistics = new SchedulerStatistics();
+	private final MetricsRenderer metrics;
+	private ThreadWrapper<MetricsServer> metricsServer;
 
 	public RasPagerService(Configuration config, boolean startService, boolean withTrayIcon)
 			throws FileNotFoundException, IOException {
 		this.config = config;
+		this.messages = createMessageQueue(config);
+		this.messageCache = new EncodedMessageCache(
+				config.getInt(ConfigKeys.MESSAGE_CACHE_SIZE, DEFAULT_MESSAGE_CACHE_SIZE));
+		this.metrics = new MetricsRenderer(messages, statistics, messageCache);
+		this.transmitter = createTransmitter(config);
+		registerMBean("EncodedMessageCache", messageCache);
+		if (transmitter instanceof VirtualTransmitter) {
+			registerMBean("VirtualTransmitter", transmitter);
+		}
 
 		if (!startService) {
 			window = new RasPagerWindow(this, withTrayIcon);
@@ -36,6 +63,75 @@ final class RasPagerService {
 		}
 	}
 
+	private static MessageQueue createMessageQueue(Configuration config) {
+		int capacity = config.getInt(ConfigKeys.QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY);
+		int sourceCapacity = config.getInt(ConfigKeys.QUEUE_SOURCE_CAPACITY, capacity);
+		MessageQueue.OverflowPolicy policy = MessageQueue.OverflowPolicy.RETRY;
+
+		String value = config.getString(ConfigKeys.QUEUE_OVERFLOW, null);
+		if (value != null) {
+			try {
+				policy = MessageQueue.OverflowPolicy.valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				log.log(Level.WARNING, "Invalid queue overflow policy: {0}", value);
+			}
+		}
+
+		return new MessageQueue(capacity, sourceCapacity, policy);
+	}
+
+	private static Transmitter createTransmitter(Configuration config) {
+		String value = config.getString(ConfigKeys.TRANSMITTER, "sdr").trim();
+		if (value.equalsIgnoreCase("virtual")) {
+			log.info("Using virtual transmitter.");
+			return new VirtualTransmitter();
+		}
+
+		if (!value.equalsIgnoreCase("sdr")) {
+			log.log(Level.WARNING, "Invalid transmitter: {0}", value);
+		}
+
+		return new SDRTransmitter();
+	}
+
+	private Server.Transport getTransport() {
+		String value = config.getString(ConfigKeys.NET_TRANSPORT, null);
+		if (value != null) {
+			try {
+				return Server.Transport.valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				log.log(Level.WARNING, "Invalid network transport: {0}", value);
+			}
+		}
+
+		return Server.Transport.NIO;
+	}
+
+	/**
+	 * Creates the message source for a master connection. Weights are
+	 * configured as a list of "address=weight" pairs, other addresses get a
+	 * weight of 1.
+	 */
+	private MessageQueue.Source createMessageSource(InetSocketAddress remoteAddress) {
+		String host = remoteAddress.getAddress().getHostAddress();
+		int weight = 1;
+
+		if (config.contains(ConfigKeys.QUEUE_WEIGHTS)) {
+			for (String entry : config.getString(ConfigKeys.QUEUE_WEIGHTS).trim().split(" +")) {
+				String[] parts = entry.split("=", 2);
+				if (parts.length == 2 && parts[0].equalsIgnoreCase(host)) {
+					try {
+						weight = Integer.parseInt(parts[1]);
+					} catch (NumberFormatException ex) {
+						log.log(Level.WARNING, "Invalid queue weight: {0}", entry);
+					}
+				}
+			}
+		}
+
+		return messages.addSource(host, weight);
+	}
+
 	public Configuration getConfig() {
 		return config;
 	}
@@ -48,10 +144,14 @@ final class RasPagerService {
 		return server != null;
 	}
 
-	public SDRTransmitter getTransmitter() {
+	public Transmitter getTransmitter() {
 		return transmitter;
 	}
 
+	public EncodedMessageCache getMessageCache() {
+		return messageCache;
+	}
+
 	public float getSearchStepSize() {
 		return searchStepSize;
 	}
@@ -74,14 +174,15 @@ final class RasPagerService {
 			return;
 		}
 
-		int period = 100;
 		if (searching) {
 			scheduler = new SearchScheduler(this, messages);
-			period = 5000;
 		} else {
 			scheduler = new Scheduler(config, messages, transmitter);
 		}
 
+		scheduler.setStatistics(statistics);
+		metrics.setTimeSlots(scheduler.getSlots());
+
 		if (window != null) {
 			scheduler.setUpdateTimeSlotsHandler(window::updateTimeSlots);
 		}
@@ -102,16 +203,49 @@ final class RasPagerService {
 			}
 		}
 
-		timer = new Timer();
-		timer.schedule(scheduler, 100, period);
+		executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+			return new Thread(r, "Scheduler");
+		});
+		scheduler.start(executor);
+
+		registerMBean("SchedulerStatistics", statistics);
+
+		int interval = config.getInt(ConfigKeys.STATS_INTERVAL, DEFAULT_STATS_INTERVAL);
+		if (interval > 0) {
+			statsExecutor = Executors.newSingleThreadScheduledExecutor((r) -> {
+				Thread t = new Thread(r, "Statistics");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			});
+			statsExecutor.scheduleAtFixedRate(() -> {
+				log.log(Level.INFO, "Scheduler timing: {0}", statistics);
+			}, interval, interval, TimeUnit.SECONDS);
+		}
 	}
 
 	public void stopScheduler() {
 		if (scheduler != null) {
 			scheduler.cancel();
+			log.log(Level.FINE, "Scheduler {0}", scheduler.getJitterStatistics());
+			log.log(Level.FINE, "Scheduler timing: {0}", statistics);
+			unregisterMBean("SchedulerStatistics");
+			metrics.setTimeSlots(null);
+			log.log(Level.FINE, "Encoded message cache: {0} entries, hit rate {1}",
+					new Object[] { messageCache.size(), messageCache.getHitRate() });
 			scheduler = null;
 		}
 
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+
+		if (statsExecutor != null) {
+			statsExecutor.shutdown();
+			statsExecutor = null;
+		}
+
 		try {
 			transmitter.close();
 		} catch (Exception e) {
@@ -119,6 +253,55 @@ final class RasPagerService {
 		}
 	}
 
+	private static ObjectName getMBeanName(String type) throws Exception {
+		return new ObjectName(MBEAN_DOMAIN + ":type=" + type);
+	}
+
+	private static void registerMBean(String type, Object mbean) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getMBeanName(type);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(mbean, name);
+			}
+		} catch (Throwable t) {
+			log.log(Level.WARNING, "Failed to register MBean " + type + ".", t);
+		}
+	}
+
+	private static void unregisterMBean(String type) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getMBeanName(type);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (Throwable t) {
+			log.log(Level.WARNING, "Failed to unregister MBean " + type + ".", t);
+		}
+	}
+
+	private void startMetricsServer() {
+		// The metrics endpoint is optional, 0 disables it.
+		int port = config.getInt(ConfigKeys.METRICS_PORT, 0);
+		if (port <= 0 || metricsServer != null) {
+			return;
+		}
+
+		String address = config.getString(ConfigKeys.METRICS_ADDRESS, null);
+		metricsServer = new ThreadWrapper<MetricsServer>(new MetricsServer(address, port, metrics));
+		metricsServer.setName("Metrics");
+		metricsServer.setDaemon(true);
+		metricsServer.start();
+	}
+
+	private void stopMetricsServer() {
+		if (metricsServer != null) {
+			metricsServer.getJob().shutdown();
+			metricsServer = null;
+		}
+	}
+
 	public void startServer(boolean join) {
 		if (server == null) {
 			int port = config.getInt(ConfigKeys.NET_PORT, 1337);
@@ -129,12 +312,39 @@ final class RasPagerService {
 			}
 
 			Server srv = new Server(port, masters);
+			srv.setTransport(getTransport());
+			srv.setWorkerThreads(config.getInt(ConfigKeys.NET_WORKER_THREADS, 1));
+			srv.setReceiveBufferSize(config.getInt(ConfigKeys.NET_RCVBUF, 64 * 1024));
+			srv.setHandlerThreads(config.getInt(ConfigKeys.NET_HANDLER_THREADS, 1));
+			srv.setFlushThreshold(config.getInt(ConfigKeys.NET_FLUSH_THRESHOLD, 128));
+			srv.setConnectionLimits(config.getInt(ConfigKeys.NET_MAX_CONNECTIONS, 4),
+					config.getInt(ConfigKeys.NET_CONNECTION_RATE, 30),
+					config.getInt(ConfigKeys.NET_CONNECTION_BURST, 5));
+			srv.setAllocator(config.getInt(ConfigKeys.NET_ALLOC_ARENAS, 1),
+					config.getInt(ConfigKeys.NET_ALLOC_PAGE_SIZE, 8192),
+					config.getInt(ConfigKeys.NET_ALLOC_MAX_ORDER, 7));
 			// Register event handlers
-			srv.setAddMessageHandler(messages::push);
+			srv.setMessageSourceFactory(this::createMessageSource);
+			srv.setMessageCache(messageCache);
+
+			// Duplicates usually arrive within seconds after a master fail
+			// over, 0 disables the filter.
+			int window = config.getInt(ConfigKeys.QUEUE_DEDUP_WINDOW, 60);
+			if (window > 0) {
+				duplicateFilter = new DuplicateFilter(window, TimeUnit.SECONDS,
+						config.getInt(ConfigKeys.QUEUE_DEDUP_SIZE, 4096));
+				srv.setDuplicateFilter(duplicateFilter);
+			}
 			// Create new server thread
 			server = new ThreadWrapper<Server>(srv);
+
+			registerMBean("Server", srv);
+			registerMBean("MessageQueue", messages);
+			metrics.setServer(srv);
 		}
 
+		startMetricsServer();
+
 		// start scheduler (not searching)
 		startScheduler(false);
 
@@ -167,6 +377,10 @@ final class RasPagerService {
 		}
 
 		server = null;
+		unregisterMBean("Server");
+		unregisterMBean("MessageQueue");
+		metrics.setServer(null);
+		stopMetricsServer();
 
 		// set running to false
 		running = false;
@@ -174,6 +388,12 @@ final class RasPagerService {
 		// stop scheduler
 		stopScheduler();
 
+		log.log(Level.FINE, "Messages rejected: {0}, dropped: {1}",
+				new Object[] { messages.getRejectedCount(), messages.getDroppedCount() });
+		if (duplicateFilter != null) {
+			log.log(Level.FINE, "Duplicates suppressed: {0}, unique messages: {1}",
+					new Object[] { duplicateFilter.getHitCount(), duplicateFilter.getMissCount() });
+		}
 		messages.clear();
 
 		log.info("Server stopped.");
@@ -191,6 +411,10 @@ final class RasPagerService {
 		stopScheduler();
 
 		server = null;
+		unregisterMBean("Server");
+		unregisterMBean("MessageQueue");
+		metrics.setServer(null);
+		stopMetricsServer();
 
 		if (window != null) {
 			window.showError("Server Error", message);
@@ -237,7 +461,13 @@ final class RasPagerService {
 			log.log(Level.SEVERE, "Failed to close transmitter.", t);
 		}
 
-		timer.cancel();
+		if (executor != null) {
+			executor.shutdown();
+		}
+
+		if (statsExecutor != null) {
+			statsExecutor.shutdown();
+		}
 	}
 
 	public RasPagerWindow getWindow() {
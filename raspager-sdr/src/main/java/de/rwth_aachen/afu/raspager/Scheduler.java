@@ -1,15 +1,18 @@
 package de.rwth_aachen.afu.raspager;
 
 import java.util.ArrayList;
-import java.util.Deque;
 import java.util.List;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-class Scheduler extends TimerTask {
+class Scheduler implements Runnable {
 	protected enum State {
 		AWAITING_SLOT, DATA_ENCODED, SLOT_STILL_ALLOWED
 	}
@@ -19,36 +22,179 @@ class Scheduler extends TimerTask {
 	protected static final int MAX = 65536;
 	protected static final int MAX_ENCODE_TIME_100MS = 3;
 	protected static final int TIMERCYCLE_MS = 10;
+	protected static final long TIME_UNIT_NANOS = 100_000_000L;
+	protected static final long SLOT_NANOS = 64 * TIME_UNIT_NANOS;
+	protected static final long START_DELAY_NANOS = TIME_UNIT_NANOS;
+	private static final int MAX_SKIPPED_MESSAGES = 16;
 
 	protected AtomicBoolean canceled = new AtomicBoolean(false);
 	protected final TimeSlots slots = new TimeSlots();
-	protected final Deque<Message> messageQueue;
+	protected final MessageQueue messageQueue;
 	protected final Transmitter transmitter;
 	private final int txDelay;
 
 	protected int time = 0;
-	protected int delay = 0;
+	protected volatile int delay = 0;
 	protected Consumer<TimeSlots> updateTimeSlotsHandler;
 	protected State schedulerState = State.AWAITING_SLOT;
-	protected List<Integer> codeWords;
+	protected CodeWordBuffer codeWords = new CodeWordBuffer(1024);
 	protected byte[] rawData;
-
-	public Scheduler(Configuration config, Deque<Message> messageQueue, Transmitter transmitter) {
+	// Second buffer which is filled by the encoder thread during playback
+	private CodeWordBuffer nextCodeWords = new CodeWordBuffer(1024);
+	private byte[] nextRawData;
+	private ScheduledExecutorService encoder;
+	private ScheduledFuture<Boolean> nextData;
+	// Wall clock time at start, advanced with the monotonic clock
+	private final long wallBaseNanos = System.currentTimeMillis() * 1_000_000L;
+	private final long monoBaseNanos = System.nanoTime();
+	private final JitterStatistics jitter = new JitterStatistics();
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> nextRun;
+	private long plannedRun;
+	// Only used by one thread at a time, see encodeAhead()
+	private final BatchPacker packer = new BatchPacker();
+	private final List<Message> skipped = new ArrayList<>();
+	// Message code words and total code words of all used batches
+	private volatile SchedulerStatistics statistics = new SchedulerStatistics();
+
+	public Scheduler(Configuration config, MessageQueue messageQueue, Transmitter transmitter) {
 		this.messageQueue = messageQueue;
 		this.transmitter = transmitter;
 
 		this.txDelay = config.getInt(ConfigKeys.TX_DELAY);
+
+		transmitter.setPttLatencyHistogram(statistics.getPttLatencyHistogram());
+		transmitter.setPcmByteCounter(statistics.getPcmByteCounter());
+		transmitter.setUnderrunCounter(statistics.getUnderrunCounter());
 	}
 
 	public void setUpdateTimeSlotsHandler(Consumer<TimeSlots> handler) {
 		updateTimeSlotsHandler = handler;
 	}
 
-	@Override
+	/**
+	 * Starts the scheduler on the given executor. The scheduler reschedules
+	 * itself until it is cancelled.
+	 * 
+	 * @param executor
+	 *            Executor to run on.
+	 */
+	public synchronized void start(ScheduledExecutorService executor) {
+		this.executor = executor;
+		scheduleRun(System.nanoTime() + START_DELAY_NANOS);
+	}
+
+	/**
+	 * Cancels the scheduler.
+	 * 
+	 * @return True if the scheduler was running.
+	 */
 	public boolean cancel() {
-		canceled.set(true);
+		boolean wasRunning = !canceled.getAndSet(true);
 
-		return super.cancel();
+		synchronized (this) {
+			if (nextRun != null) {
+				nextRun.cancel(false);
+			}
+
+			if (encoder != null) {
+				encoder.shutdownNow();
+			}
+		}
+
+		return wasRunning;
+	}
+
+	/**
+	 * Gets the wake-up jitter statistics.
+	 * 
+	 * @return Jitter statistics.
+	 */
+	public JitterStatistics getJitterStatistics() {
+		return jitter;
+	}
+
+	/**
+	 * Gets the timing statistics.
+	 * 
+	 * @return Timing statistics.
+	 */
+	public SchedulerStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Sets the timing statistics to update, e.g. to keep them across
+	 * scheduler restarts.
+	 * 
+	 * @param statistics
+	 *            Timing statistics.
+	 */
+	public void setStatistics(SchedulerStatistics statistics) {
+		this.statistics = statistics;
+		transmitter.setPttLatencyHistogram(statistics.getPttLatencyHistogram());
+		transmitter.setPcmByteCounter(statistics.getPcmByteCounter());
+		transmitter.setUnderrunCounter(statistics.getUnderrunCounter());
+	}
+
+	/**
+	 * Gets the average ratio of message code words to all code words in the
+	 * transmitted batches.
+	 * 
+	 * @return Fill ratio between 0 and 1.
+	 */
+	public double getBatchFillRatio() {
+		return statistics.getBatchFillRatio();
+	}
+
+	private synchronized void scheduleRun(long when) {
+		if (canceled.get() || executor == null) {
+			return;
+		}
+
+		plannedRun = when;
+		nextRun = executor.schedule(this::tick, when - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	private void tick() {
+		jitter.record(System.nanoTime() - plannedRun);
+
+		try {
+			run();
+		} finally {
+			scheduleRun(getNextRunTime());
+		}
+	}
+
+	/**
+	 * Calculates when the scheduler has to run the next time. Instead of
+	 * polling, the scheduler only wakes up at slot starts and within the
+	 * encoding window before a slot.
+	 * 
+	 * @return Next run time (based on {@link System#nanoTime()}).
+	 */
+	protected long getNextRunTime() {
+		long now = System.nanoTime();
+		long corrected = toCorrectedNanos(now);
+		long toSlotStart = SLOT_NANOS - (corrected % SLOT_NANOS);
+
+		switch (schedulerState) {
+		case SLOT_STILL_ALLOWED:
+			// Check for messages fitting into the rest of the slot
+			return now + Math.min(toSlotStart, TIME_UNIT_NANOS);
+		case DATA_ENCODED:
+			// Data encoded before the next allowed slot
+			return now + toSlotStart;
+		case AWAITING_SLOT:
+		default:
+			long toDeadline = toSlotStart - MAX_ENCODE_TIME_100MS * TIME_UNIT_NANOS;
+			if (toDeadline > 0) {
+				return now + toDeadline;
+			} else {
+				// Check for new messages within the encoding window
+				return now + Math.min(toSlotStart, TIME_UNIT_NANOS);
+			}
+		}
 	}
 
 	@Override
@@ -57,7 +203,7 @@ class Scheduler extends TimerTask {
 			return;
 		}
 
-		time = ((int) (System.currentTimeMillis() / 100) + delay) % MAX;
+		time = getCurrentTime();
 
 		if (slots.hasChanged(time) && updateTimeSlotsHandler != null) {
 			// log.fine("Updating time slots.");
@@ -86,8 +232,10 @@ class Scheduler extends TimerTask {
 				int nextAllowed = TimeSlots.getNextIndex(time);
 				int allowedCount = slots.getCount(nextAllowed);
 
-				if (updateData(allowedCount)) {
-					rawData = transmitter.encode(codeWords);
+				long start = System.nanoTime();
+				if (updateData(codeWords, allowedCount * 64)) {
+					prepareData();
+					statistics.recordEncodeTime(System.nanoTime() - start);
 					schedulerState = State.DATA_ENCODED;
 					log.log(Level.FINE, "state = {0}", schedulerState);
 				}
@@ -99,18 +247,126 @@ class Scheduler extends TimerTask {
 
 	private void sendData() {
 		if (slots.get(TimeSlots.getIndex(time))) {
+			// The wake-up may happen slightly before the slot start
+			long sinceStart = toCorrectedNanos(System.nanoTime()) % SLOT_NANOS;
+			if (sinceStart > SLOT_NANOS / 2) {
+				sinceStart -= SLOT_NANOS;
+			}
+			statistics.recordSlotLateness(sinceStart);
+
+			transmitAll();
+		}
+	}
+
+	/**
+	 * Sends the current data and, as long as the slot allows it, the data
+	 * encoded during each transmission.
+	 */
+	private void transmitAll() {
+		while (true) {
+			encodeAhead();
+
 			log.fine("Activating transmitter.");
 			try {
-				transmitter.send(rawData);
+				transmitData();
 				log.fine("Data sent");
 			} catch (Throwable t) {
 				log.log(Level.SEVERE, "Failed to send data.", t);
-			} finally {
+			}
+
+			if (!takeEncodedAhead()) {
 				schedulerState = State.SLOT_STILL_ALLOWED;
+				break;
 			}
 
-			log.log(Level.FINE, "state = {0}", schedulerState);
+			// Send the next data right away if the slot allows it,
+			// otherwise wait for the next allowed slot.
+			time = getCurrentTime();
+			if (!slots.isAllowed(time)) {
+				schedulerState = State.DATA_ENCODED;
+				break;
+			}
 		}
+
+		log.log(Level.FINE, "state = {0}", schedulerState);
+	}
+
+	/**
+	 * Schedules the encoding of the data for the slot following the current
+	 * transmission on the encoder thread. Encoding starts shortly before the
+	 * current transmission ends so that late messages are included.
+	 */
+	private void encodeAhead() {
+		// 32 bits per code word at 1200 bps
+		long duration = codeWords.size() * 32 * 1000L / 1200 + txDelay;
+		int endTime = (time + (int) (duration / 100)) % MAX;
+		long encodeDelay = Math.max(0, duration - MAX_ENCODE_TIME_100MS * 100);
+
+		synchronized (this) {
+			if (canceled.get()) {
+				return;
+			}
+
+			if (encoder == null) {
+				encoder = Executors.newSingleThreadScheduledExecutor((r) -> {
+					Thread t = new Thread(r, "Encoder");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+
+			nextData = encoder.schedule(() -> {
+				if (!slots.isAllowed(endTime) || messageQueue.isEmpty()) {
+					return false;
+				}
+
+				// Only the remaining time of the current slot can be used
+				int count = slots.getCount(TimeSlots.getIndex(endTime));
+				long start = System.nanoTime();
+				if (updateData(nextCodeWords, count * 64 - endTime % 64)) {
+					nextRawData = encode(nextCodeWords);
+					statistics.recordEncodeTime(System.nanoTime() - start);
+					return true;
+				} else {
+					return false;
+				}
+			}, encodeDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Swaps in the data encoded by {@link #encodeAhead()}.
+	 * 
+	 * @return True if data for the next transmission is available.
+	 */
+	private boolean takeEncodedAhead() {
+		ScheduledFuture<Boolean> future = nextData;
+		nextData = null;
+
+		// Nothing to do if encoding did not start yet.
+		if (future == null || future.cancel(false)) {
+			return false;
+		}
+
+		try {
+			if (!future.get()) {
+				return false;
+			}
+		} catch (ExecutionException ex) {
+			log.log(Level.SEVERE, "Failed to encode data.", ex.getCause());
+			return false;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		CodeWordBuffer tmp = codeWords;
+		codeWords = nextCodeWords;
+		nextCodeWords = tmp;
+		rawData = nextRawData;
+		nextRawData = null;
+
+		return true;
 	}
 
 	private void stillAllowed() {
@@ -119,9 +375,15 @@ class Scheduler extends TimerTask {
 				int currentSlot = TimeSlots.getIndex(time);
 				int count = slots.getCount(currentSlot);
 
-				if (updateData(count)) {
-					rawData = transmitter.encode(codeWords);
-					schedulerState = State.DATA_ENCODED;
+				long start = System.nanoTime();
+				if (updateData(codeWords, count * 64 - time % 64)) {
+					prepareData();
+					statistics.recordEncodeTime(System.nanoTime() - start);
+
+					// The data is sized for the rest of the current run of
+					// allowed slots, so it has to be sent right away.
+					transmitAll();
+					return;
 				}
 			} else {
 				schedulerState = State.AWAITING_SLOT;
@@ -135,78 +397,133 @@ class Scheduler extends TimerTask {
 	}
 
 	/**
-	 * Gets data depending on the given slot count.
+	 * Encodes the current code words unless the transmitter encodes them while
+	 * sending.
 	 * 
-	 * @param slotCount
-	 *            Slot count.
-	 * @return Code words to send.
+	 * @throws Exception
+	 *             If the data could not be encoded.
 	 */
-	private boolean updateData(int slotCount) {
-		// send batches
-		// max batches per slot: (slot time - praeambel time) / bps / ((frames +
-		// (1 = sync)) * bits per frame)
-		// (3,75 - 0,48) * 1200 / ((16 + 1) * 32)
-		int maxBatch = (int) ((6.40 * slotCount - 0.48 - txDelay / 1000) * 1200 / 544);
-		int msgCount = 0;
+	protected void prepareData() throws Exception {
+		rawData = encode(codeWords);
+	}
 
-		codeWords = new ArrayList<>();
+	/**
+	 * Encodes the given code words unless the transmitter encodes them while
+	 * sending.
+	 * 
+	 * @param cws
+	 *            Code words to encode.
+	 * @return Encoded data or null if the transmitter is streaming.
+	 * @throws Exception
+	 *             If the data could not be encoded.
+	 */
+	private byte[] encode(CodeWordBuffer cws) throws Exception {
+		if (transmitter.isStreaming()) {
+			return null;
+		} else {
+			return transmitter.encode(cws.array(), cws.size());
+		}
+	}
 
-		// add praeembel
-		for (int i = 0; i < 18; i++) {
-			codeWords.add(Pocsag.PRAEAMBLE);
-		}
-
-		while (!messageQueue.isEmpty()) {
-			Message message = messageQueue.pop();
-
-			// get codewords and frame position
-			List<Integer> cwBuf = message.getCodeWords();
-			int framePos = cwBuf.get(0);
-			int cwCount = cwBuf.size() - 1;
-
-			// (data.size() - 18) / 17 = aktBatches
-			// aktBatches + (cwCount + 2 * framePos) / 16 + 1 = Batches NACH
-			// hinzufügen
-			// also Batches NACH hinzufügen > maxBatches, dann keine neue
-			// Nachricht holen
-			// if count of batches + this message is greater than max batches
-			if (((codeWords.size() - 18) / 17 + (cwCount + 2 * framePos) / 16 + 1) > maxBatch) {
-				messageQueue.addFirst(message);
-				break;
+	/**
+	 * Sends the data prepared by {@link #prepareData()}.
+	 * 
+	 * @throws Exception
+	 *             If the data could not be sent.
+	 */
+	protected void transmitData() throws Exception {
+		long start = System.nanoTime();
+		try {
+			if (rawData != null) {
+				transmitter.send(rawData);
+			} else {
+				transmitter.send(codeWords.array(), codeWords.size());
 			}
+		} finally {
+			statistics.recordPlaybackTime(System.nanoTime() - start);
+		}
+	}
 
-			++msgCount;
+	/**
+	 * Gets data depending on the available slot time.
+	 * 
+	 * @param codeWords
+	 *            Buffer receiving the code words.
+	 * @param slotTime
+	 *            Available slot time in 0.1 s (64 per slot).
+	 * @return Code words to send.
+	 */
+	private boolean updateData(CodeWordBuffer codeWords, int slotTime) {
+		int maxBatch = getMaxBatches(slotTime, txDelay);
 
-			// each batch starts with a sync code word
-			codeWords.add(Pocsag.SYNC);
+		packMessages(messageQueue, packer, maxBatch, skipped);
 
-			// add idle code words until frame position is reached
-			for (int c = 0; c < framePos; c++) {
-				codeWords.add(Pocsag.IDLE);
-				codeWords.add(Pocsag.IDLE);
-			}
+		codeWords.clear();
 
-			// add actual payload
-			for (int c = 1; c < cwBuf.size(); c++) {
-				if ((codeWords.size() - 18) % 17 == 0) {
-					codeWords.add(Pocsag.SYNC);
-				}
+		if (packer.getMessageCount() == 0) {
+			return false;
+		}
 
-				codeWords.add(cwBuf.get(c));
-			}
+		// add praeembel
+		codeWords.add(Pocsag.PRAEAMBLE, 18);
+		packer.write(codeWords);
 
-			// fill batch with idle-words
-			while ((codeWords.size() - 18) % 17 != 0) {
-				codeWords.add(Pocsag.IDLE);
+		statistics.recordBatches(packer.getMessageCount(), packer.getUsedCodeWords(), packer.getUsedBatches() * 16);
+
+		log.fine(String.format("Batches used: %1$d / %2$d, fill ratio: %3$.2f", packer.getUsedBatches(), maxBatch,
+				packer.getFillRatio()));
+
+		return true;
+	}
+
+	/**
+	 * Packs queued messages into the batches of the packer. Messages that do
+	 * not fit are skipped so they do not block the queue, but only up to a
+	 * limit to keep the scan short. Skipped messages are returned to the
+	 * queue in their original order.
+	 * 
+	 * @param messageQueue
+	 *            Queue to take the messages from.
+	 * @param packer
+	 *            Packer receiving the messages, reset before packing.
+	 * @param maxBatches
+	 *            Number of available batches.
+	 * @param skipped
+	 *            Empty scratch list for skipped messages, empty on return.
+	 */
+	static void packMessages(MessageQueue messageQueue, BatchPacker packer, int maxBatches, List<Message> skipped) {
+		packer.reset(maxBatches);
+
+		Message message;
+		while (!packer.isFull() && skipped.size() < MAX_SKIPPED_MESSAGES && (message = messageQueue.poll()) != null) {
+			if (!packer.add(message.getCodeWords())) {
+				skipped.add(message);
 			}
 		}
 
-		if (msgCount > 0) {
-			log.fine(String.format("Batches used: %1$d / %2$d", ((codeWords.size() - 18) / 17), maxBatch));
-			return true;
-		} else {
-			return false;
+		// put skipped messages back in their original order
+		for (int i = skipped.size() - 1; i >= 0; --i) {
+			messageQueue.pushBack(skipped.get(i));
 		}
+
+		skipped.clear();
+	}
+
+	/**
+	 * Calculates the number of batches fitting into the available time.
+	 * 
+	 * @param slotTime
+	 *            Available slot time in 0.1 s (64 per slot).
+	 * @param txDelay
+	 *            Transmitter delay in ms.
+	 * @return Number of batches.
+	 */
+	static int getMaxBatches(int slotTime, int txDelay) {
+		// send batches
+		// max batches per slot: (slot time - praeambel time) / bps / ((frames +
+		// (1 = sync)) * bits per frame)
+		// (3,75 - 0,48) * 1200 / ((16 + 1) * 32)
+		return (int) ((slotTime / 10.0 - 0.48 - txDelay / 1000) * 1200 / 544);
 	}
 
 	public TimeSlots getSlots() {
@@ -217,6 +534,27 @@ class Scheduler extends TimerTask {
 		slots.setSlots(s);
 	}
 
+	/**
+	 * Calculates the current time including the time correction.
+	 * 
+	 * @return Current time.
+	 */
+	protected int getCurrentTime() {
+		return (int) ((toCorrectedNanos(System.nanoTime()) / TIME_UNIT_NANOS) % MAX);
+	}
+
+	/**
+	 * Converts a monotonic timestamp into wall clock time including the time
+	 * correction.
+	 * 
+	 * @param monoNanos
+	 *            Timestamp returned by {@link System#nanoTime()}.
+	 * @return Corrected time in ns since the epoch.
+	 */
+	protected long toCorrectedNanos(long monoNanos) {
+		return wallBaseNanos + (monoNanos - monoBaseNanos) + delay * TIME_UNIT_NANOS;
+	}
+
 	/**
 	 * Gets current time.
 	 * 
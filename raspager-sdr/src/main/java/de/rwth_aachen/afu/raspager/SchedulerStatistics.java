@@ -0,0 +1,247 @@
+package de.rwth_aachen.afu.raspager;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the sent messages and transmissions, and the timing of the work
+ * done for each slot, used to find missed deadlines:
+ * <ul>
+ * <li>encode time: packing the batches and encoding the PCM data</li>
+ * <li>PTT latency: keying the transmitter until the first sample is played
+ * (including the TX delay)</li>
+ * <li>slot lateness: slot start until the transmission starts</li>
+ * <li>playback time: duration of the transmission</li>
+ * </ul>
+ */
+final class SchedulerStatistics implements SchedulerStatisticsMXBean {
+	// Encoding has to fit into the window before the slot
+	static final long ENCODE_LIMIT_NANOS = Scheduler.MAX_ENCODE_TIME_100MS * Scheduler.TIME_UNIT_NANOS;
+	// Transmissions starting later than this lose air time
+	static final long LATE_START_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private final LatencyHistogram encodeTime = new LatencyHistogram();
+	private final LatencyHistogram pttLatency = new LatencyHistogram();
+	private final LatencyHistogram slotLateness = new LatencyHistogram();
+	private final LatencyHistogram playbackTime = new LatencyHistogram();
+	private final LongAdder encodeOverruns = new LongAdder();
+	private final LongAdder lateSlotStarts = new LongAdder();
+	private final LongAdder transmissions = new LongAdder();
+	private final LongAdder onAirNanos = new LongAdder();
+	private final LongAdder messagesSent = new LongAdder();
+	private final LongAdder usedCodeWords = new LongAdder();
+	private final LongAdder batchCodeWords = new LongAdder();
+	private final LongAdder pcmBytes = new LongAdder();
+	private final LongAdder audioUnderruns = new LongAdder();
+	private volatile long startNanos = System.nanoTime();
+
+	/**
+	 * Records the batches prepared for a transmission.
+	 * 
+	 * @param messages
+	 *            Number of messages.
+	 * @param usedCodeWords
+	 *            Number of code words used by the messages.
+	 * @param batchCodeWords
+	 *            Number of code words of all batches (excluding sync code
+	 *            words).
+	 */
+	public void recordBatches(int messages, int usedCodeWords, int batchCodeWords) {
+		this.messagesSent.add(messages);
+		this.usedCodeWords.add(usedCodeWords);
+		this.batchCodeWords.add(batchCodeWords);
+	}
+
+	/**
+	 * Records the time needed to encode the data of a transmission.
+	 * 
+	 * @param nanos
+	 *            Encode time in ns.
+	 */
+	public void recordEncodeTime(long nanos) {
+		encodeTime.record(nanos);
+		if (nanos > ENCODE_LIMIT_NANOS) {
+			encodeOverruns.increment();
+		}
+	}
+
+	/**
+	 * Records how late a transmission started after the slot start.
+	 * 
+	 * @param nanos
+	 *            Lateness in ns.
+	 */
+	public void recordSlotLateness(long nanos) {
+		slotLateness.record(nanos);
+		if (nanos > LATE_START_NANOS) {
+			lateSlotStarts.increment();
+		}
+	}
+
+	/**
+	 * Records the duration of a transmission.
+	 * 
+	 * @param nanos
+	 *            Duration in ns.
+	 */
+	public void recordPlaybackTime(long nanos) {
+		playbackTime.record(nanos);
+		transmissions.increment();
+		onAirNanos.add(nanos);
+	}
+
+	/**
+	 * Gets the histogram of the PTT latency. It is filled by the transmitter.
+	 * 
+	 * @return PTT latency histogram.
+	 */
+	public LatencyHistogram getPttLatencyHistogram() {
+		return pttLatency;
+	}
+
+	/**
+	 * Gets the counter of the produced PCM bytes. It is updated by the
+	 * transmitter.
+	 * 
+	 * @return PCM byte counter.
+	 */
+	public LongAdder getPcmByteCounter() {
+		return pcmBytes;
+	}
+
+	/**
+	 * Gets the counter of audio buffer underruns. It is updated by the
+	 * transmitter.
+	 * 
+	 * @return Underrun counter.
+	 */
+	public LongAdder getUnderrunCounter() {
+		return audioUnderruns;
+	}
+
+	/**
+	 * Gets the histogram of the encode time.
+	 * 
+	 * @return Encode time histogram.
+	 */
+	public LatencyHistogram getEncodeTimeHistogram() {
+		return encodeTime;
+	}
+
+	/**
+	 * Gets the histogram of the slot lateness.
+	 * 
+	 * @return Slot lateness histogram.
+	 */
+	public LatencyHistogram getSlotLatenessHistogram() {
+		return slotLateness;
+	}
+
+	/**
+	 * Gets the histogram of the playback time.
+	 * 
+	 * @return Playback time histogram.
+	 */
+	public LatencyHistogram getPlaybackTimeHistogram() {
+		return playbackTime;
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getEncodeTime() {
+		return encodeTime.getSnapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getPttLatency() {
+		return pttLatency.getSnapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getSlotLateness() {
+		return slotLateness.getSnapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getPlaybackTime() {
+		return playbackTime.getSnapshot();
+	}
+
+	@Override
+	public long getEncodeOverruns() {
+		return encodeOverruns.sum();
+	}
+
+	@Override
+	public long getLateSlotStarts() {
+		return lateSlotStarts.sum();
+	}
+
+	@Override
+	public long getTransmissions() {
+		return transmissions.sum();
+	}
+
+	@Override
+	public long getMessagesSent() {
+		return messagesSent.sum();
+	}
+
+	@Override
+	public double getMessagesPerTransmission() {
+		long count = transmissions.sum();
+		return count > 0 ? (double) messagesSent.sum() / count : 0.0;
+	}
+
+	@Override
+	public double getBatchFillRatio() {
+		long total = batchCodeWords.sum();
+		return total > 0 ? (double) usedCodeWords.sum() / total : 0.0;
+	}
+
+	@Override
+	public long getOnAirMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(onAirNanos.sum());
+	}
+
+	@Override
+	public double getDutyCycle() {
+		long elapsed = System.nanoTime() - startNanos;
+		return elapsed > 0 ? (double) onAirNanos.sum() / elapsed : 0.0;
+	}
+
+	@Override
+	public long getPcmBytes() {
+		return pcmBytes.sum();
+	}
+
+	@Override
+	public long getAudioUnderruns() {
+		return audioUnderruns.sum();
+	}
+
+	@Override
+	public void reset() {
+		encodeTime.reset();
+		pttLatency.reset();
+		slotLateness.reset();
+		playbackTime.reset();
+		encodeOverruns.reset();
+		lateSlotStarts.reset();
+		transmissions.reset();
+		onAirNanos.reset();
+		messagesSent.reset();
+		usedCodeWords.reset();
+		batchCodeWords.reset();
+		pcmBytes.reset();
+		audioUnderruns.reset();
+		startNanos = System.nanoTime();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"transmissions: %d, messages: %d, fill ratio: %.2f, duty cycle: %.3f, encode time: %s (overruns %d), "
+						+ "PTT latency: %s, slot lateness: %s (late %d), playback time: %s",
+				getTransmissions(), getMessagesSent(), getBatchFillRatio(), getDutyCycle(), encodeTime,
+				getEncodeOverruns(), pttLatency, slotLateness, getLateSlotStarts(), playbackTime);
+	}
+}
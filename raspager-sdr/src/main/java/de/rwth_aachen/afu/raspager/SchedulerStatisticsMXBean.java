@@ -0,0 +1,36 @@
+package de.rwth_aachen.afu.raspager;
+
+/**
+ * Management interface of the {@link SchedulerStatistics}.
+ */
+public interface SchedulerStatisticsMXBean {
+	LatencyHistogram.Snapshot getEncodeTime();
+
+	LatencyHistogram.Snapshot getPttLatency();
+
+	LatencyHistogram.Snapshot getSlotLateness();
+
+	LatencyHistogram.Snapshot getPlaybackTime();
+
+	long getEncodeOverruns();
+
+	long getLateSlotStarts();
+
+	long getTransmissions();
+
+	long getMessagesSent();
+
+	double getMessagesPerTransmission();
+
+	double getBatchFillRatio();
+
+	long getOnAirMillis();
+
+	double getDutyCycle();
+
+	long getPcmBytes();
+
+	long getAudioUnderruns();
+
+	void reset();
+}
@@ -1,36 +1,72 @@
 package de.rwth_aachen.afu.raspager;
 
+import java.net.InetSocketAddress;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.IntConsumer;
 import java.util.function.IntSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.Delimiters;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
 
 /**
  * RasPager server implementation.
  * 
  * @author Philipp Thiel
  */
-final class Server implements Runnable {
+final class Server implements Runnable, ServerStatisticsMXBean {
+	/**
+	 * Network transport implementation.
+	 */
+	public enum Transport {
+		/**
+		 * Java NIO, available everywhere.
+		 */
+		NIO,
+		/**
+		 * Native epoll transport. The native library bundled with netty-all
+		 * is only built for Linux on x86_64, so on ARM boards like the
+		 * Raspberry Pi this always falls back to NIO.
+		 */
+		EPOLL
+	}
+
 	private static final Logger log = Logger.getLogger(Server.class.getName());
-	private static final StringEncoder encoder = new StringEncoder();
-	private static final StringDecoder decoder = new StringDecoder();
+	private static final int MAX_LINE_LENGTH = 4096;
 	private final ServerHandler protocol = new ServerHandler();
 	private final MasterServerFilter ipFilter;
 	private final int port;
+	private int handlerThreads = 1;
+	private Transport transport = Transport.NIO;
+	// A single master connection does not need more than one thread
+	private int workerThreads = 1;
+	private int receiveBufferSize = 0;
+	private int allocatorArenas = 1;
+	private int allocatorPageSize = 8192;
+	// 8 KiB pages << 7 = 1 MiB chunks instead of the Netty default of 16 MiB
+	private int allocatorMaxOrder = 7;
+	private volatile BufferMetrics bufferMetrics;
+	private int maxConnections = 4;
+	private int connectionsPerMinute = 30;
+	private int connectionBurst = 5;
+	private volatile ConnectionLimiter limiter;
+	private volatile DuplicateFilter duplicateFilter;
 	private ChannelFuture serverFuture;
 
 	/**
@@ -52,13 +88,223 @@ final class Server implements Runnable {
 	}
 
 	/**
-	 * Sets the new message handler.
+	 * Sets the network transport. Falls back to NIO if the native transport
+	 * is not available.
 	 * 
-	 * @param messageHandler
-	 *            Handler to use.
+	 * @param transport
+	 *            Transport to use.
+	 */
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Sets the number of threads handling network I/O.
+	 * 
+	 * @param workerThreads
+	 *            Number of threads, 0 for the Netty default.
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * Sets the socket receive buffer size of accepted connections.
+	 * 
+	 * @param receiveBufferSize
+	 *            Size in bytes, 0 for the system default.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Sets the pooled buffer allocator parameters. Each arena allocates
+	 * chunks of {@code pageSize << maxOrder} bytes.
+	 * 
+	 * @param arenas
+	 *            Number of direct and heap arenas.
+	 * @param pageSize
+	 *            Page size in bytes (power of two, at least 4096).
+	 * @param maxOrder
+	 *            Chunk size order (0-14).
+	 */
+	public void setAllocator(int arenas, int pageSize, int maxOrder) {
+		this.allocatorArenas = arenas;
+		this.allocatorPageSize = pageSize;
+		this.allocatorMaxOrder = maxOrder;
+	}
+
+	/**
+	 * Sets the connection limits.
+	 * 
+	 * @param maxConnections
+	 *            Maximum number of concurrent connections, 0 for no limit.
+	 * @param connectionsPerMinute
+	 *            Rate of new connections per source address, 0 for no
+	 *            limit.
+	 * @param burst
+	 *            Number of connections a source address may open at once.
+	 */
+	public void setConnectionLimits(int maxConnections, int connectionsPerMinute, int burst) {
+		this.maxConnections = maxConnections;
+		this.connectionsPerMinute = connectionsPerMinute;
+		this.connectionBurst = burst;
+	}
+
+	/**
+	 * Gets the connection limiter.
+	 * 
+	 * @return Connection limiter or null if no limits are set or the server
+	 *         was not started yet.
+	 */
+	public ConnectionLimiter getConnectionLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Gets the master server filter.
+	 * 
+	 * @return Filter or null if all addresses are accepted.
+	 */
+	public MasterServerFilter getMasterServerFilter() {
+		return ipFilter;
+	}
+
+	/**
+	 * Gets the statistics of the network buffer allocator.
+	 * 
+	 * @return Buffer statistics or null if the server was not started yet.
+	 */
+	public BufferMetrics getBufferMetrics() {
+		return bufferMetrics;
+	}
+
+	@Override
+	public int getConnectionCount() {
+		return protocol.getConnectionCount();
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return protocol.getAcceptedConnections();
+	}
+
+	@Override
+	public long getReceivedMessages() {
+		return protocol.getReceivedMessages();
+	}
+
+	@Override
+	public long getDuplicateMessages() {
+		DuplicateFilter filter = duplicateFilter;
+		return filter != null ? filter.getHitCount() : 0;
+	}
+
+	@Override
+	public long getRejectedByFilter() {
+		return ipFilter != null ? ipFilter.getRejectedCount() : 0;
+	}
+
+	@Override
+	public long getRejectedByRate() {
+		ConnectionLimiter l = limiter;
+		return l != null ? l.getRejectedByRate() : 0;
+	}
+
+	@Override
+	public long getRejectedByLimit() {
+		ConnectionLimiter l = limiter;
+		return l != null ? l.getRejectedByLimit() : 0;
+	}
+
+	@Override
+	public long getUsedDirectMemory() {
+		BufferMetrics metrics = bufferMetrics;
+		return metrics != null ? metrics.getUsedDirectMemory() : 0;
+	}
+
+	@Override
+	public long getUsedHeapMemory() {
+		BufferMetrics metrics = bufferMetrics;
+		return metrics != null ? metrics.getUsedHeapMemory() : 0;
+	}
+
+	@Override
+	public int getDirectArenas() {
+		BufferMetrics metrics = bufferMetrics;
+		return metrics != null ? metrics.getDirectArenas() : 0;
+	}
+
+	@Override
+	public int getHeapArenas() {
+		BufferMetrics metrics = bufferMetrics;
+		return metrics != null ? metrics.getHeapArenas() : 0;
+	}
+
+	@Override
+	public long getActiveDirectBuffers() {
+		BufferMetrics metrics = bufferMetrics;
+		return metrics != null ? metrics.getActiveDirectBuffers() : 0;
+	}
+
+	@Override
+	public long getActiveHeapBuffers() {
+		BufferMetrics metrics = bufferMetrics;
+		return metrics != null ? metrics.getActiveHeapBuffers() : 0;
+	}
+
+	/**
+	 * Sets the number of threads requests are handled on. Messages are
+	 * encoded on these threads instead of the network event loop.
+	 * 
+	 * @param handlerThreads
+	 *            Number of threads, 0 to handle requests on the event loop.
+	 */
+	public void setHandlerThreads(int handlerThreads) {
+		this.handlerThreads = handlerThreads;
+	}
+
+	/**
+	 * Sets the number of replies after which they are flushed before the
+	 * current read is complete.
+	 * 
+	 * @param flushThreshold
+	 *            Number of replies.
+	 */
+	public void setFlushThreshold(int flushThreshold) {
+		protocol.setFlushThreshold(flushThreshold);
+	}
+
+	/**
+	 * Sets the filter for duplicate messages.
+	 * 
+	 * @param duplicateFilter
+	 *            Filter to use or null to queue all messages.
+	 */
+	public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+		this.duplicateFilter = duplicateFilter;
+		protocol.setDuplicateFilter(duplicateFilter);
+	}
+
+	/**
+	 * Sets the cache used for encoding received messages.
+	 * 
+	 * @param messageCache
+	 *            Cache to use or null to always encode.
+	 */
+	public void setMessageCache(EncodedMessageCache messageCache) {
+		protocol.setMessageCache(messageCache);
+	}
+
+	/**
+	 * Sets the factory for per connection message sources.
+	 * 
+	 * @param messageSourceFactory
+	 *            Factory to use.
 	 */
-	public void setAddMessageHandler(Consumer<Message> messageHandler) {
-		protocol.setAddMessageHandler(messageHandler);
+	public void setMessageSourceFactory(Function<InetSocketAddress, MessageQueue.Source> messageSourceFactory) {
+		protocol.setMessageSourceFactory(messageSourceFactory);
 	}
 
 	/**
@@ -113,13 +359,67 @@ final class Server implements Runnable {
 
 	@Override
 	public void run() {
-		EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-		EventLoopGroup workerGroup = new NioEventLoopGroup();
+		boolean epoll = false;
+		if (transport == Transport.EPOLL) {
+			if (Epoll.isAvailable()) {
+				epoll = true;
+			} else {
+				log.log(Level.WARNING, "Epoll transport not available, using NIO.", Epoll.unavailabilityCause());
+			}
+		}
+
+		PooledByteBufAllocator allocator;
+		try {
+			allocator = new PooledByteBufAllocator(true, allocatorArenas, allocatorArenas, allocatorPageSize,
+					allocatorMaxOrder, PooledByteBufAllocator.defaultTinyCacheSize(),
+					PooledByteBufAllocator.defaultSmallCacheSize(), PooledByteBufAllocator.defaultNormalCacheSize(),
+					true);
+		} catch (IllegalArgumentException ex) {
+			log.log(Level.WARNING, "Invalid buffer allocator configuration, using defaults.", ex);
+			allocator = new PooledByteBufAllocator(true);
+		}
+
+		bufferMetrics = new BufferMetrics(allocator);
+
+		if (maxConnections > 0 || connectionsPerMinute > 0) {
+			limiter = new ConnectionLimiter(maxConnections, connectionsPerMinute, connectionBurst);
+		} else {
+			limiter = null;
+		}
+
+		EventLoopGroup bossGroup;
+		EventLoopGroup workerGroup;
+		if (epoll) {
+			bossGroup = new EpollEventLoopGroup(1);
+			workerGroup = new EpollEventLoopGroup(Math.max(0, workerThreads));
+		} else {
+			bossGroup = new NioEventLoopGroup(1);
+			workerGroup = new NioEventLoopGroup(Math.max(0, workerThreads));
+		}
+
+		EventExecutorGroup handlerGroup = null;
+		if (handlerThreads > 0) {
+			handlerGroup = new DefaultEventExecutorGroup(handlerThreads, new DefaultThreadFactory("Protocol", true));
+		}
+
+		protocol.setExecutorGroup(handlerGroup);
 
 		try {
 			ServerBootstrap b = new ServerBootstrap();
 			b.group(bossGroup, workerGroup);
-			b.channel(NioServerSocketChannel.class);
+			if (epoll) {
+				b.channel(EpollServerSocketChannel.class);
+			} else {
+				b.channel(NioServerSocketChannel.class);
+			}
+
+			b.option(ChannelOption.ALLOCATOR, allocator);
+			b.childOption(ChannelOption.ALLOCATOR, allocator);
+			// Acks are small and should not wait for Nagle's algorithm
+			b.childOption(ChannelOption.TCP_NODELAY, true);
+			if (receiveBufferSize > 0) {
+				b.childOption(ChannelOption.SO_RCVBUF, receiveBufferSize);
+			}
 
 			// Define channel initializer
 			b.childHandler(new ChannelInitializer<SocketChannel>() {
@@ -127,14 +427,18 @@ final class Server implements Runnable {
 				protected void initChannel(SocketChannel ch) throws Exception {
 					ChannelPipeline pip = ch.pipeline();
 
+					// Cheapest checks first. Unknown addresses are rejected
+					// before they count towards the connection limits.
 					if (ipFilter != null) {
 						pip.addLast("filter", ipFilter);
 					}
 
-					pip.addLast(new DelimiterBasedFrameDecoder(4096, Delimiters.lineDelimiter()));
-					// Static as both encoder and decoder are sharable.
-					pip.addLast("decoder", decoder);
-					pip.addLast("encoder", encoder);
+					if (limiter != null) {
+						pip.addLast("limiter", limiter);
+					}
+
+					// Decoder keeps state, one instance per connection.
+					pip.addLast("decoder", new ProtocolDecoder(MAX_LINE_LENGTH));
 					// Our custom message handler
 					pip.addLast("protocol", protocol);
 				}
@@ -150,6 +454,16 @@ final class Server implements Runnable {
 		} finally {
 			bossGroup.shutdownGracefully();
 			workerGroup.shutdownGracefully();
+
+			if (handlerGroup != null) {
+				handlerGroup.shutdownGracefully();
+			}
+
+			log.log(Level.FINE, "Network buffers: {0}", bufferMetrics);
+			if (limiter != null) {
+				log.log(Level.FINE, "Connections rejected by rate: {0}, by limit: {1}",
+						new Object[] { limiter.getRejectedByRate(), limiter.getRejectedByLimit() });
+			}
 		}
 	}
 
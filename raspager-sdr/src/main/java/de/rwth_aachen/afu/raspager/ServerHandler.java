@@ -1,39 +1,136 @@
 package de.rwth_aachen.afu.raspager;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.IntConsumer;
 import java.util.function.IntSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
 
 /**
  * This class handles incoming packets like new messages to send from a client
  * connection.
  */
 @Sharable
-final class ServerHandler extends SimpleChannelInboundHandler<String> {
+final class ServerHandler extends SimpleChannelInboundHandler<Command> {
 	private static final Logger log = Logger.getLogger(ServerHandler.class.getName());
+	// TODO Adjust version string
+	private static final ByteBuf WELCOME = constant("[SDRPager v2.0-SCP-#2345678]\r\n");
+	private static final ByteBuf ACK_SUCCESS = constant("+\r\n");
+	private static final ByteBuf ACK_ERROR = constant("-\r\n");
+	private static final ByteBuf ACK_RETRY = constant("%\r\n");
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(CharsetUtil.US_ASCII);
+	private static final AttributeKey<Connection> CONNECTION = AttributeKey.valueOf(ServerHandler.class,
+			"connection");
 	private final AtomicInteger connectionCount = new AtomicInteger(0);
-	private Consumer<Message> messageHandler;
+	private final LongAdder acceptedConnections = new LongAdder();
+	private final LongAdder receivedMessages = new LongAdder();
+	private Function<InetSocketAddress, MessageQueue.Source> messageSourceFactory;
+	private DuplicateFilter duplicateFilter;
+	private EncodedMessageCache messageCache;
 	private IntConsumer timeCorrectionHandler;
 	private Consumer<String> timeSlotsHandler;
 	private IntSupplier timeHandler;
 	private Runnable connectHandler;
 	private Runnable disconnectHandler;
+	private EventExecutorGroup executorGroup;
+	private int flushThreshold = 128;
 
 	/**
-	 * Sets the handler for new message packets.
+	 * Per connection state.
+	 */
+	private static final class Connection {
+		// Executor requests are handled on, null for the event loop
+		private final EventExecutor executor;
+		// Queue for messages of this connection
+		private final MessageQueue.Source source;
+		// Requests received since the last read completed
+		private List<Command> pending = new ArrayList<>();
+		// Replies not yet written, only used by the handling thread
+		private ByteBuf replies;
+		private int replyCount = 0;
+
+		private Connection(EventExecutor executor, MessageQueue.Source source) {
+			this.executor = executor;
+			this.source = source;
+		}
+	}
+
+	/**
+	 * Sets the factory for message sources. Each connection gets its own
+	 * source which is closed when the connection is closed. If a message
+	 * cannot be queued, the client is asked to retry.
 	 * 
-	 * @param messageHandler
-	 *            Handler to use.
+	 * @param messageSourceFactory
+	 *            Factory creating a source for a remote address.
 	 */
-	public void setAddMessageHandler(Consumer<Message> messageHandler) {
-		this.messageHandler = messageHandler;
+	public void setMessageSourceFactory(Function<InetSocketAddress, MessageQueue.Source> messageSourceFactory) {
+		this.messageSourceFactory = messageSourceFactory;
+	}
+
+	/**
+	 * Gets the number of open connections.
+	 * 
+	 * @return Number of connections.
+	 */
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	/**
+	 * Gets the number of connections accepted since the start.
+	 * 
+	 * @return Number of connections.
+	 */
+	public long getAcceptedConnections() {
+		return acceptedConnections.sum();
+	}
+
+	/**
+	 * Gets the number of received messages, including duplicates and
+	 * rejected messages.
+	 * 
+	 * @return Number of messages.
+	 */
+	public long getReceivedMessages() {
+		return receivedMessages.sum();
+	}
+
+	/**
+	 * Sets the filter for duplicate messages. Duplicates are acknowledged but
+	 * not queued.
+	 * 
+	 * @param duplicateFilter
+	 *            Filter to use or null to queue all messages.
+	 */
+	public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+		this.duplicateFilter = duplicateFilter;
+	}
+
+	/**
+	 * Sets the cache used for encoding received messages.
+	 * 
+	 * @param messageCache
+	 *            Cache to use or null to always encode.
+	 */
+	public void setMessageCache(EncodedMessageCache messageCache) {
+		this.messageCache = messageCache;
 	}
 
 	/**
@@ -87,14 +184,44 @@ final class ServerHandler extends SimpleChannelInboundHandler<String> {
 		disconnectHandler = handler;
 	}
 
+	/**
+	 * Sets the executors requests are handled on. Each connection is bound to
+	 * one executor so its requests are still handled in order. If no executor
+	 * group is set, requests are handled on the event loop.
+	 * 
+	 * @param executorGroup
+	 *            Executor group to use or null.
+	 */
+	public void setExecutorGroup(EventExecutorGroup executorGroup) {
+		this.executorGroup = executorGroup;
+	}
+
+	/**
+	 * Sets the number of replies after which they are flushed even if the
+	 * current read is not complete yet.
+	 * 
+	 * @param flushThreshold
+	 *            Number of replies.
+	 */
+	public void setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = Math.max(1, flushThreshold);
+	}
+
 	@Override
 	public void channelActive(ChannelHandlerContext ctx) throws Exception {
 		log.fine("Accepted new connection.");
 
-		// TODO Adjust version string
-		ctx.write("[SDRPager v2.0-SCP-#2345678]\r\n");
-		ctx.flush();
+		EventExecutor executor = executorGroup != null ? executorGroup.next() : null;
+		MessageQueue.Source source = null;
+		if (messageSourceFactory != null) {
+			source = messageSourceFactory.apply((InetSocketAddress) ctx.channel().remoteAddress());
+		}
+
+		ctx.channel().attr(CONNECTION).set(new Connection(executor, source));
+
+		ctx.writeAndFlush(WELCOME.duplicate());
 
+		acceptedConnections.increment();
 		int count = connectionCount.incrementAndGet();
 		if (count == 1 && connectHandler != null) {
 			connectHandler.run();
@@ -105,6 +232,20 @@ final class ServerHandler extends SimpleChannelInboundHandler<String> {
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
 		log.fine("Connection closed.");
 
+		Connection conn = ctx.channel().attr(CONNECTION).getAndSet(null);
+		if (conn != null) {
+			if (conn.source != null) {
+				conn.source.close();
+				log.log(Level.FINE, "Messages from {0}", conn.source);
+			}
+
+			if (conn.executor != null) {
+				conn.executor.execute(() -> discardReplies(conn));
+			} else {
+				discardReplies(conn);
+			}
+		}
+
 		int count = connectionCount.decrementAndGet();
 		if (count == 0 && disconnectHandler != null) {
 			disconnectHandler.run();
@@ -113,35 +254,60 @@ final class ServerHandler extends SimpleChannelInboundHandler<String> {
 
 	@Override
 	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-		ctx.flush();
+		Connection conn = ctx.channel().attr(CONNECTION).get();
+		if (conn == null) {
+			return;
+		}
+
+		if (conn.executor != null) {
+			// Handle all requests of this read in one task
+			if (!conn.pending.isEmpty()) {
+				List<Command> requests = conn.pending;
+				conn.pending = new ArrayList<>();
+
+				conn.executor.execute(() -> {
+					for (Command request : requests) {
+						handleRequest(ctx, conn, request);
+					}
+
+					flushReplies(ctx, conn);
+				});
+			}
+		} else {
+			flushReplies(ctx, conn);
+		}
 	}
 
 	@Override
-	protected void channelRead0(ChannelHandlerContext ctx, String request) throws Exception {
-		if (request.isEmpty()) {
-			log.warning("Received empty request.");
-			return;
-		}
+	protected void channelRead0(ChannelHandlerContext ctx, Command request) throws Exception {
+		log.log(Level.FINE, "Received message of type: {0}", request.getType());
 
-		char type = request.charAt(0);
-		log.log(Level.FINE, "Received message of type: {0}", type);
+		Connection conn = ctx.channel().attr(CONNECTION).get();
+		if (conn.executor != null) {
+			// Encoding messages is moved off the event loop, the decoder
+			// reuses the request so it has to be copied.
+			conn.pending.add(request.copy());
+		} else {
+			handleRequest(ctx, conn, request);
+		}
+	}
 
-		switch (type) {
-		case '#':
-			handleMessage(ctx, request);
+	private void handleRequest(ChannelHandlerContext ctx, Connection conn, Command request) {
+		switch (request.getType()) {
+		case MESSAGE:
+			handleMessage(ctx, conn, request);
 			break;
-		case '2':
-			handleMasterIdentify(ctx, request);
+		case MASTER_IDENTIFY:
+			handleMasterIdentify(ctx, conn, request);
 			break;
-		case '3':
-			handleTimeCorrection(ctx, request);
+		case TIME_CORRECTION:
+			handleTimeCorrection(ctx, conn, request);
 			break;
-		case '4':
-			handleTimeSlots(ctx, request);
+		case TIME_SLOTS:
+			handleTimeSlots(ctx, conn, request);
 			break;
 		default:
-			log.log(Level.WARNING, "Invalid message type: {0}", type);
-			ackError(ctx);
+			ack(ctx, conn, ACK_ERROR);
 		}
 	}
 
@@ -156,26 +322,60 @@ final class ServerHandler extends SimpleChannelInboundHandler<String> {
 	 * 
 	 * @param ctx
 	 *            Client connection.
+	 * @param conn
+	 *            Connection state.
 	 * @param request
 	 *            Request which contains the message.
 	 */
-	private void handleMessage(ChannelHandlerContext ctx, String request) {
+	private void handleMessage(ChannelHandlerContext ctx, Connection conn, Command request) {
+		receivedMessages.increment();
+
 		try {
-			if (messageHandler != null) {
-				messageHandler.accept(new Message(request));
+			if (conn.source != null) {
+				DuplicateFilter filter = duplicateFilter;
+				long key = 0;
+				if (filter != null) {
+					key = DuplicateFilter.hash(request.getMessageType(), request.getAddress(), request.getFunction(),
+							request.getText());
+				}
+
+				if (filter != null && !filter.addIfAbsent(key)) {
+					log.fine("Duplicate message suppressed.");
+				} else {
+					boolean queued = false;
+					try {
+						Message message = new Message(request.getMessageType(), request.getSpeed(),
+								request.getAddress(), request.getFunction(), request.getText(), messageCache);
+						queued = conn.source.offer(message);
+					} finally {
+						// Forget the message so a retry is not suppressed
+						if (!queued && filter != null) {
+							filter.remove(key);
+						}
+					}
+
+					if (!queued) {
+						log.fine("Message queue is full.");
+						ack(ctx, conn, ACK_RETRY);
+						return;
+					}
+				}
 
 				// Send message ID as response
-				int messageId = Integer.parseInt(request.substring(1, 3), 16);
-				messageId = (messageId + 1) % 256;
-				String response = String.format("#%02x +\r\n", messageId);
-				ctx.write(response);
+				int messageId = (request.getMessageId() + 1) % 256;
+				ByteBuf response = beginReply(ctx, conn);
+				response.writeByte('#');
+				writeHex(response, messageId, 2);
+				response.writeByte(' ');
+				response.writeBytes(ACK_SUCCESS, ACK_SUCCESS.readerIndex(), ACK_SUCCESS.readableBytes());
+				endReply(ctx, conn);
 			} else {
 				log.severe("No message handler registered.");
-				ackError(ctx);
+				ack(ctx, conn, ACK_ERROR);
 			}
 		} catch (Throwable t) {
 			log.log(Level.WARNING, "Failed to add message or send response.", t);
-			ackError(ctx);
+			ack(ctx, conn, ACK_ERROR);
 		}
 	}
 
@@ -184,24 +384,35 @@ final class ServerHandler extends SimpleChannelInboundHandler<String> {
 	 * 
 	 * @param ctx
 	 *            Client connection.
+	 * @param conn
+	 *            Connection state.
 	 * @param request
 	 *            Request
 	 */
-	private void handleMasterIdentify(ChannelHandlerContext ctx, String request) {
+	private void handleMasterIdentify(ChannelHandlerContext ctx, Connection conn, Command request) {
 		try {
 			if (timeHandler != null) {
 				int time = timeHandler.getAsInt();
-				String[] parts = request.split(":", 2);
-				String response = String.format("2:%s:%04x\r\n", parts[1], time);
-				ctx.write(response);
-				ackSuccess(ctx);
+				StringBuilder data = request.getText();
+
+				ByteBuf response = beginReply(ctx, conn);
+				response.writeByte('2');
+				response.writeByte(':');
+				ByteBufUtil.writeUtf8(response, data);
+				response.writeByte(':');
+				writeHex(response, time, 4);
+				response.writeByte('\r');
+				response.writeByte('\n');
+				endReply(ctx, conn);
+
+				ack(ctx, conn, ACK_SUCCESS);
 			} else {
 				log.severe("No time handler registered.");
-				ackError(ctx);
+				ack(ctx, conn, ACK_ERROR);
 			}
 		} catch (Throwable t) {
 			log.log(Level.WARNING, "Failed to handle master packet.", t);
-			ackError(ctx);
+			ack(ctx, conn, ACK_ERROR);
 		}
 	}
 
@@ -210,31 +421,24 @@ final class ServerHandler extends SimpleChannelInboundHandler<String> {
 	 * 
 	 * @param ctx
 	 *            Client connection
+	 * @param conn
+	 *            Connection state.
 	 * @param request
 	 *            Time data
 	 */
-	private void handleTimeCorrection(ChannelHandlerContext ctx, String request) {
+	private void handleTimeCorrection(ChannelHandlerContext ctx, Connection conn, Command request) {
 		try {
 			if (timeCorrectionHandler != null) {
-				String[] parts = request.split(":", 2);
-				int delay = 0;
-				if (parts[1].charAt(1) == '+') {
-					delay = Integer.parseInt(parts[1].substring(1), 16);
-				} else {
-					// No need to strip leading "-" char
-					delay = Integer.parseInt(parts[1], 16);
-				}
-
-				timeCorrectionHandler.accept(delay);
+				timeCorrectionHandler.accept(request.getValue());
 
-				ackSuccess(ctx);
+				ack(ctx, conn, ACK_SUCCESS);
 			} else {
 				log.severe("No set time correction handler registered.");
-				ackError(ctx);
+				ack(ctx, conn, ACK_ERROR);
 			}
 		} catch (Throwable t) {
 			log.log(Level.WARNING, "Failed to correct time.", t);
-			ackError(ctx);
+			ack(ctx, conn, ACK_ERROR);
 		}
 	}
 
@@ -243,54 +447,124 @@ final class ServerHandler extends SimpleChannelInboundHandler<String> {
 	 * 
 	 * @param ctx
 	 *            Client connection.
+	 * @param conn
+	 *            Connection state.
 	 * @param request
 	 *            Time slot data.
 	 */
-	private void handleTimeSlots(ChannelHandlerContext ctx, String request) {
+	private void handleTimeSlots(ChannelHandlerContext ctx, Connection conn, Command request) {
 		log.fine("TimeSlots");
 		try {
 			if (timeSlotsHandler != null) {
-				String[] parts = request.split(":", 2);
-				timeSlotsHandler.accept(parts[1]);
-				ackSuccess(ctx);
+				timeSlotsHandler.accept(request.getText().toString());
+				ack(ctx, conn, ACK_SUCCESS);
 			} else {
 				log.severe("No set time slots handler registered.");
-				ackError(ctx);
+				ack(ctx, conn, ACK_ERROR);
 			}
 		} catch (Throwable t) {
 			log.log(Level.WARNING, "Failed to set time slots.", t);
-			ackError(ctx);
+			ack(ctx, conn, ACK_ERROR);
 		}
 	}
 
 	/**
-	 * Sends a success ack to the client.
+	 * Sends an ack to the client.
 	 * 
 	 * @param ctx
 	 *            Client connection.
+	 * @param conn
+	 *            Connection state.
+	 * @param ack
+	 *            Ack to send.
 	 */
-	private void ackSuccess(ChannelHandlerContext ctx) {
-		ctx.write("+\r\n");
+	private void ack(ChannelHandlerContext ctx, Connection conn, ByteBuf ack) {
+		beginReply(ctx, conn).writeBytes(ack, ack.readerIndex(), ack.readableBytes());
+		endReply(ctx, conn);
 	}
 
 	/**
-	 * Sends an error ack to the client.
+	 * Gets the buffer the next reply is appended to.
 	 * 
 	 * @param ctx
 	 *            Client connection.
+	 * @param conn
+	 *            Connection state.
+	 * @return Reply buffer.
 	 */
-	private void ackError(ChannelHandlerContext ctx) {
-		ctx.write("-\r\n");
+	private ByteBuf beginReply(ChannelHandlerContext ctx, Connection conn) {
+		if (conn.replies == null) {
+			conn.replies = ctx.alloc().buffer();
+		}
+
+		return conn.replies;
+	}
+
+	/**
+	 * Finishes a reply and flushes all replies if the threshold is reached.
+	 * 
+	 * @param ctx
+	 *            Client connection.
+	 * @param conn
+	 *            Connection state.
+	 */
+	private void endReply(ChannelHandlerContext ctx, Connection conn) {
+		if (++conn.replyCount >= flushThreshold) {
+			flushReplies(ctx, conn);
+		}
 	}
 
 	/**
-	 * Sends a retry ack to the client.
+	 * Writes and flushes all pending replies as one buffer.
 	 * 
 	 * @param ctx
 	 *            Client connection.
+	 * @param conn
+	 *            Connection state.
+	 */
+	private void flushReplies(ChannelHandlerContext ctx, Connection conn) {
+		if (conn.replies != null) {
+			ctx.writeAndFlush(conn.replies);
+			conn.replies = null;
+			conn.replyCount = 0;
+		}
+	}
+
+	private static void discardReplies(Connection conn) {
+		if (conn.replies != null) {
+			conn.replies.release();
+			conn.replies = null;
+			conn.replyCount = 0;
+		}
+	}
+
+	/**
+	 * Writes a number as lower case hex digits.
+	 * 
+	 * @param buf
+	 *            Target buffer.
+	 * @param value
+	 *            Non-negative value to write.
+	 * @param minDigits
+	 *            Minimum number of digits, padded with zeros.
+	 */
+	private static void writeHex(ByteBuf buf, int value, int minDigits) {
+		int digits = Math.max(minDigits, (32 - Integer.numberOfLeadingZeros(value) + 3) / 4);
+		for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+			buf.writeByte(HEX_DIGITS[(value >>> shift) & 0xf]);
+		}
+	}
+
+	/**
+	 * Creates a constant buffer which is shared by all connections. Write
+	 * duplicates of it so the reader index of the constant is not changed.
+	 * 
+	 * @param str
+	 *            ASCII content.
+	 * @return Unreleasable buffer.
 	 */
-	@SuppressWarnings("unused")
-	private void ackRetry(ChannelHandlerContext ctx) {
-		ctx.write("%\r\n");
+	private static ByteBuf constant(String str) {
+		byte[] data = str.getBytes(CharsetUtil.US_ASCII);
+		return Unpooled.unreleasableBuffer(Unpooled.directBuffer(data.length).writeBytes(data));
 	}
 }
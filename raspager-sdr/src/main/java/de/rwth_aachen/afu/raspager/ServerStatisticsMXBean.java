@@ -0,0 +1,32 @@
+package de.rwth_aachen.afu.raspager;
+
+/**
+ * Management interface of the {@link Server}.
+ */
+public interface ServerStatisticsMXBean {
+	int getConnectionCount();
+
+	long getAcceptedConnections();
+
+	long getReceivedMessages();
+
+	long getDuplicateMessages();
+
+	long getRejectedByFilter();
+
+	long getRejectedByRate();
+
+	long getRejectedByLimit();
+
+	long getUsedDirectMemory();
+
+	long getUsedHeapMemory();
+
+	int getDirectArenas();
+
+	int getHeapArenas();
+
+	long getActiveDirectBuffers();
+
+	long getActiveHeapBuffers();
+}
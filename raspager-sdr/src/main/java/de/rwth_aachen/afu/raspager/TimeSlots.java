@@ -1,26 +1,34 @@
 package de.rwth_aachen.afu.raspager;
 
-final class TimeSlots {
+import java.util.concurrent.atomic.AtomicInteger;
 
-	private final boolean[] slots = new boolean[16];
-	private int lastSlotIndex = -1;
+final class TimeSlots {
+	private static final int ALL_SLOTS = 0xffff;
+	// Bit i is set if slot i is active
+	private final AtomicInteger slots = new AtomicInteger(0);
+	private final AtomicInteger lastSlotIndex = new AtomicInteger(-1);
 
 	/**
 	 * Sets active slots based on string representation.
 	 * 
 	 * @param s
 	 *            String representation of active slots.
+	 * @throws IllegalArgumentException
+	 *             If the string contains an invalid slot.
 	 */
-	public synchronized void setSlots(String s) {
-		// Reset all to false (instead of creating a new array)
-		for (int i = 0; i < slots.length; ++i) {
-			slots[i] = false;
-		}
+	public void setSlots(String s) {
+		int mask = 0;
 
 		for (int i = 0; i < s.length(); ++i) {
 			int idx = Character.digit(s.charAt(i), 16);
-			slots[idx] = true;
+			if (idx < 0) {
+				throw new IllegalArgumentException("Invalid slot: " + s.charAt(i));
+			}
+
+			mask |= 1 << idx;
 		}
+
+		slots.set(mask);
 	}
 
 	/**
@@ -30,7 +38,7 @@ final class TimeSlots {
 	 *            Slot to check.
 	 * @return Number of active slots.
 	 */
-	public synchronized int getCount(char cs) {
+	public int getCount(char cs) {
 		return getCount(Character.digit(cs, 16));
 	}
 
@@ -41,14 +49,26 @@ final class TimeSlots {
 	 *            Slot to check.
 	 * @return Number of active slots.
 	 */
-	public synchronized int getCount(int slot) {
-		int count = 0;
-
-		for (int i = slot; slots[i % 16] && (i < slot + 16); ++i) {
-			++count;
+	public int getCount(int slot) {
+		int mask = slots.get();
+		if (mask == ALL_SLOTS) {
+			return 16;
 		}
 
-		return count;
+		// Rotate the given slot to bit 0 and count the set bits from there
+		slot &= 15;
+		int rotated = ((mask >>> slot) | (mask << (16 - slot))) & ALL_SLOTS;
+
+		return Integer.numberOfTrailingZeros(~rotated);
+	}
+
+	/**
+	 * Gets the number of active slots.
+	 * 
+	 * @return Number of active slots.
+	 */
+	public int getAllowedCount() {
+		return Integer.bitCount(slots.get());
 	}
 
 	/**
@@ -56,12 +76,13 @@ final class TimeSlots {
 	 * 
 	 * @return String containing active slot indices.
 	 */
-	public synchronized String getSlots() {
-		StringBuilder sb = new StringBuilder();
+	public String getSlots() {
+		int mask = slots.get();
+		StringBuilder sb = new StringBuilder(16);
 
-		for (int i = 0; i < slots.length; ++i) {
-			if (slots[i]) {
-				sb.append(String.format("%1x", i));
+		for (int i = 0; i < 16; ++i) {
+			if ((mask & (1 << i)) != 0) {
+				sb.append(Character.forDigit(i, 16));
 			}
 		}
 
@@ -75,8 +96,8 @@ final class TimeSlots {
 	 *            Slot index (smaller than 16).
 	 * @return Status of the slot at the given index.
 	 */
-	public synchronized boolean get(int index) {
-		return slots[index % 16];
+	public boolean get(int index) {
+		return (slots.get() & (1 << (index % 16))) != 0;
 	}
 
 	/**
@@ -97,14 +118,9 @@ final class TimeSlots {
 	 *            Current time
 	 * @return True if the given slot number is the last slot.
 	 */
-	public synchronized boolean hasChanged(int time) {
+	public boolean hasChanged(int time) {
 		int slot = getIndex(time);
-		if (lastSlotIndex == slot) {
-			return false;
-		} else {
-			lastSlotIndex = slot;
-			return true;
-		}
+		return lastSlotIndex.getAndSet(slot) != slot;
 	}
 
 	/**
@@ -114,8 +130,8 @@ final class TimeSlots {
 	 *            Time
 	 * @return True if the next slot will be active.
 	 */
-	public synchronized boolean isNextAllowed(int time) {
-		return get(getCurrent(time) + 1);
+	public boolean isNextAllowed(int time) {
+		return get(getNextIndex(time));
 	}
 
 	/**
@@ -147,21 +163,60 @@ final class TimeSlots {
 		return ((int) (time / 64)) % 16;
 	}
 
+	/**
+	 * Gets the index of the slot following the current slot.
+	 * 
+	 * @param time
+	 *            Time value.
+	 * @return Slot index.
+	 */
 	public static int getNextIndex(int time) {
 		return (getIndex(time) + 1) % 16;
 	}
 
+	/**
+	 * Gets the start time of a slot within the slot cycle (102.4 s) that
+	 * contains the given time.
+	 * 
+	 * @param slot
+	 *            Slot index.
+	 * @param time
+	 *            Time value.
+	 * @return Start time of the slot (may be before the given time).
+	 */
 	public static int getStartTimeForSlot(int slot, int time) {
-		return ((time % 1024) + (slot * 64));
+		return (time - (time % 1024) + (slot * 64));
 	}
 
+	/**
+	 * Gets the end time of a slot within the slot cycle that contains the
+	 * given time.
+	 * 
+	 * @param slot
+	 *            Slot index.
+	 * @param time
+	 *            Time value.
+	 * @return End time of the slot (exclusive).
+	 */
 	public static int getEndTimeForSlot(int slot, int time) {
-		return (getStartTimeForSlot(slot, time) + 1024);
+		return (getStartTimeForSlot(slot, time) + 64);
 	}
 
+	/**
+	 * Gets the time until the next slot starts.
+	 * 
+	 * @param time
+	 *            Time value.
+	 * @return Time until the next slot in 0.1 s (1 to 64).
+	 */
 	public static int getTimeToNextSlot(int time) {
-		int nextSlot = (getCurrent(time) + 1) % 16;
-		return (getStartTimeForSlot(nextSlot, time) - time);
+		int start = getStartTimeForSlot(getNextIndex(time), time);
+		if (start <= time) {
+			// Next slot is part of the next cycle
+			start += 1024;
+		}
+
+		return (start - time);
 	}
 
 }
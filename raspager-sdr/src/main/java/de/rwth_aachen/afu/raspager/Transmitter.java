@@ -1,6 +1,7 @@
 package de.rwth_aachen.afu.raspager;
 
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 public interface Transmitter extends AutoCloseable {
 
@@ -23,7 +24,27 @@ public interface Transmitter extends AutoCloseable {
 	 * @throws Exception
 	 *             If an error occurred while encoding the data.
 	 */
-	byte[] encode(List<Integer> data) throws Exception;
+	default byte[] encode(List<Integer> data) throws Exception {
+		int[] cws = new int[data.size()];
+		for (int i = 0; i < cws.length; ++i) {
+			cws[i] = data.get(i);
+		}
+
+		return encode(cws, cws.length);
+	}
+
+	/**
+	 * Encodes the code words into a raw byte array.
+	 * 
+	 * @param data
+	 *            Array containing the code words to encode.
+	 * @param length
+	 *            Number of code words to encode.
+	 * @return Byte array containing the encoded data.
+	 * @throws Exception
+	 *             If an error occurred while encoding the data.
+	 */
+	byte[] encode(int[] data, int length) throws Exception;
 
 	/**
 	 * Sends the encoded data over the air.
@@ -34,4 +55,81 @@ public interface Transmitter extends AutoCloseable {
 	 *             If an error occurred while sending the data.
 	 */
 	void send(byte[] data) throws Exception;
+
+	/**
+	 * Checks whether the transmitter encodes the code words while sending
+	 * them. In this case {@link #send(int[], int)} should be used instead of
+	 * encoding the data in advance.
+	 * 
+	 * @return True if the transmitter streams the code words.
+	 */
+	default boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * Encodes and sends the code words over the air.
+	 * 
+	 * @param data
+	 *            Array containing the code words to send. It must not be
+	 *            modified until this method returns.
+	 * @param length
+	 *            Number of code words to send.
+	 * @throws Exception
+	 *             If an error occurred while sending the data.
+	 */
+	default void send(int[] data, int length) throws Exception {
+		send(encode(data, length));
+	}
+
+	/**
+	 * Sets the histogram receiving the time between keying the transmitter
+	 * and playing the first sample. Transmitters which cannot measure this
+	 * ignore the histogram.
+	 * 
+	 * @param histogram
+	 *            Histogram to update or null.
+	 */
+	default void setPttLatencyHistogram(LatencyHistogram histogram) {
+	}
+
+	/**
+	 * Sets the counter receiving the number of encoded bytes. Transmitters
+	 * which do not produce raw data ignore the counter.
+	 * 
+	 * @param counter
+	 *            Counter to update or null.
+	 */
+	default void setPcmByteCounter(LongAdder counter) {
+	}
+
+	/**
+	 * Sets the counter receiving the number of audio buffer underruns, i.e.
+	 * gaps in the transmitted signal. Transmitters which cannot detect them
+	 * ignore the counter.
+	 * 
+	 * @param counter
+	 *            Counter to update or null.
+	 */
+	default void setUnderrunCounter(LongAdder counter) {
+	}
+
+	/**
+	 * Sets the correction factor of the generated signal. Transmitters without
+	 * an adjustable signal ignore it.
+	 * 
+	 * @param correction
+	 *            Correction factor.
+	 */
+	default void setCorrection(float correction) {
+	}
+
+	/**
+	 * Gets the correction factor of the generated signal.
+	 * 
+	 * @return Correction factor.
+	 */
+	default float getCorrection() {
+		return 0.0f;
+	}
 }
@@ -1,12 +1,13 @@
 package de.rwth_aachen.afu.raspager.sdr;
 
-import java.util.List;
+import java.util.Arrays;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Clip;
 import javax.sound.sampled.LineEvent;
 import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
 
 /**
  * This class contains the audio encoder that encodes code words into an audio
@@ -16,9 +17,30 @@ final class AudioEncoder {
 	// 0-2 = begin, 4-36 = constant, 38-39 = end
 	private static final AudioFormat af48000 = new AudioFormat(48000, 16, 1, true, false);
 	private static final float[] bitChange = { -0.9f, -0.7f, 0.0f, 0.7f, 0.9f };
+	private static final int SAMPLES_PER_BIT = 40;
+	private static final int SAMPLE_SIZE = af48000.getSampleSizeInBits() / 8;
+	private static final int BYTES_PER_BIT = SAMPLES_PER_BIT * SAMPLE_SIZE;
+	private static final int END_PADDING = 100;
+	// 60 bits = 50 ms per chunk, 4 chunks buffered by the sound card
+	private static final int STREAM_CHUNK_SIZE = 60 * BYTES_PER_BIT;
+	private static final int STREAM_BUFFER_SIZE = 4 * STREAM_CHUNK_SIZE;
 	private Mixer.Info device = null;
 	private float correction = 0.0f;
+	// PCM templates, replaced whenever the correction factor changes
+	private volatile Templates templates;
 	private Object playMutex = new Object();
+	// System.nanoTime() when the last playback started, 0 if not started
+	private volatile long playStartNanos = 0;
+	// Buffer underruns during the last streamed playback
+	private volatile int underruns = 0;
+
+	/**
+	 * Constructs a new audio encoder without a sound device. Such an encoder
+	 * can only be used to encode data.
+	 */
+	AudioEncoder() {
+		createTemplates();
+	}
 
 	/**
 	 * Constructs a new audio encoder using the given sound device.
@@ -39,6 +61,17 @@ final class AudioEncoder {
 		if (device == null) {
 			throw new IllegalArgumentException("Sound device does not exist.");
 		}
+
+		createTemplates();
+	}
+
+	/**
+	 * Gets the format of the encoded data.
+	 * 
+	 * @return Audio format.
+	 */
+	static AudioFormat getFormat() {
+		return af48000;
 	}
 
 	/**
@@ -57,18 +90,25 @@ final class AudioEncoder {
 	 */
 	public void setCorrection(float correction) {
 		this.correction = correction;
+		createTemplates();
 	}
 
 	/**
-	 * Encodes a list of code words into a byte array that can be send to the
+	 * Encodes an array of code words into a byte array that can be send to the
 	 * soundcard.
 	 * 
 	 * @param data
-	 *            List of code words
+	 *            Array of code words
+	 * @param length
+	 *            Number of code words to encode.
 	 * @return Byte array containing the encoded data.
 	 */
-	public byte[] encode(List<Integer> data) {
-		return encode(toByteArray(data), correction);
+	public byte[] encode(int[] data, int length) {
+		// 100 extra bytes to get the end data to be sent
+		byte[] result = new byte[length * 32 * BYTES_PER_BIT + END_PADDING];
+		new PcmStream(data, length).read(result, 0, result.length);
+
+		return result;
 	}
 
 	/**
@@ -80,6 +120,8 @@ final class AudioEncoder {
 	 *             If an error occurred.
 	 */
 	public void play(byte[] data) throws Exception {
+		playStartNanos = 0;
+
 		try (Clip c = AudioSystem.getClip(device)) {
 			// auskommentieren, falls Downsampling verwendet werden soll
 			c.open(af48000, data, 0, data.length);
@@ -97,6 +139,7 @@ final class AudioEncoder {
 			});
 
 			c.start();
+			playStartNanos = System.nanoTime();
 			c.loop(0);
 
 			try {
@@ -109,137 +152,222 @@ final class AudioEncoder {
 		}
 	}
 
-	private static byte[] encode(byte[] inputData, float correction) {
-		byte sample_size = (byte) (af48000.getSampleSizeInBits() / 8);
-		// 100 extra bytes to get the end data to be sent
-		byte[] data = new byte[40 * sample_size * inputData.length * 8 + 100];
-		int max = (int) Math.pow(2, af48000.getSampleSizeInBits()) / 2 - 1;
-
-		boolean lastHigh = false;
-		int value = 0;
-
-		for (int i = 0; i < inputData.length; i++) {
-			// 0b1000 0000 Bit selection mask
-			int comp = 128;
-
-			// one byte containing 8 data bits to encode
-			for (int j = 0; j < 8; j++) {
-				// j = Bit index in current byte of input data
+	/**
+	 * Encodes the code words while playing them via the sound device. In
+	 * contrast to {@link #play(byte[]) play} only a small fixed size buffer is
+	 * used, regardless of the number of code words.
+	 * 
+	 * @param data
+	 *            Array of code words. It must not be modified while playing.
+	 * @param length
+	 *            Number of code words to play.
+	 * @return Number of bytes played.
+	 * @throws Exception
+	 *             If an error occurred.
+	 */
+	public long play(int[] data, int length) throws Exception {
+		PcmStream stream = new PcmStream(data, length);
+		byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+		playStartNanos = 0;
+		underruns = 0;
+
+		try (SourceDataLine line = AudioSystem.getSourceDataLine(af48000, device)) {
+			line.open(af48000, STREAM_BUFFER_SIZE);
+
+			long total = 0;
+			int count = stream.read(chunk, 0, chunk.length);
+			total += count;
+			// Start playing as soon as the first chunk is available, write
+			// blocks while the line buffer is full.
+			line.write(chunk, 0, count);
+			line.start();
+			playStartNanos = System.nanoTime();
+
+			while ((count = stream.read(chunk, 0, chunk.length)) > 0) {
+				// An empty line buffer means the sound card ran out of data
+				if (line.available() >= line.getBufferSize()) {
+					++underruns;
+				}
 
-				// one bit
-				// get index, which tells the start sample in audio sample array
-				int index = (i * 8 + j) * 40;
+				line.write(chunk, 0, count);
+				total += count;
+			}
 
-				// select current bit high or low and compare with last
-				boolean high = ((inputData[i] & comp) == comp);
+			line.drain();
+			line.stop();
 
-				// System.out.println("Aktuelles Byte besthend aus 8 Bits" +
-				// inputData[i]);
-				// System.out.println("Aktuelles Bit " + high);
+			return total;
+		}
+	}
 
-				boolean same = (high == lastHigh);
-				lastHigh = high;
+	/**
+	 * Gets the time the last playback started.
+	 * 
+	 * @return Start time (based on {@link System#nanoTime()}) or 0 if the
+	 *         playback did not start.
+	 */
+	public long getPlayStartNanos() {
+		return playStartNanos;
+	}
 
-				// correction factor (for high to low/low to high and high or
-				// low)
-				// first 576 bits = praeembel
-				// if ((high) || (i < 576)) { int f = 1} else { int f = -1}
+	/**
+	 * Gets the number of buffer underruns during the last streamed playback.
+	 * 
+	 * @return Number of underruns.
+	 */
+	public int getUnderruns() {
+		return underruns;
+	}
 
-				// Entweder i < 576 (Präambel), dann immer 1,
-				// oder aktueller Bit-Wert ist in f, Werte 1 (=High) oder -1
-				// (=Low)
-				// int f = high || i < 576 ? 1 : -1;
+	/**
+	 * Creates the PCM templates for the current correction factor.
+	 */
+	private void createTemplates() {
+		Templates tpl = new Templates();
+		int max = (int) Math.pow(2, af48000.getSampleSizeInBits()) / 2 - 1;
 
-				// geändert am 12.09.; fixt Ausgabe
-				int f = high ? 1 : -1;
+		for (int bit = 0; bit < 2; ++bit) {
+			int f = bit == 1 ? 1 : -1;
+			int value = (int) (f * max * correction);
 
-				// first 3 bits
-				if (index == 0) {
-					for (int l = 0; l <= 2; l++) {
-						value = (int) ((int) (bitChange[2 + l] * max) * f * correction);
+			// first 3 samples of the first bit, followed by the constant part
+			byte[] t = new byte[38 * SAMPLE_SIZE];
+			for (int l = 0; l <= 2; ++l) {
+				putSample(t, l, (int) ((int) (bitChange[2 + l] * max) * f * correction));
+			}
+			for (int k = 3; k <= 37; ++k) {
+				putSample(t, k, value);
+			}
+			tpl.begin[bit] = t;
 
-						// convert value to bytes
-						for (int c = 0; c < sample_size; c++) {
-							byte sample_byte = (byte) ((value >> (8 * c)) & 0xff);
-							data[(index + l) * sample_size + c] = sample_byte;
-						}
-					}
-				} else {
-					// other bits
-					if (same) {
-						for (int l = 0; l < 5; ++l) {
-							value = (int) (f * max * correction);
-
-							for (int c = 0; c < sample_size; ++c) {
-								byte sample_byte = (byte) ((value >> (8 * c)) & 0xff);
-								data[(index - 2 + l) * sample_size + c] = sample_byte;
-							}
-						}
+			// last 2 samples of the last bit
+			t = new byte[2 * SAMPLE_SIZE];
+			for (int l = 0; l <= 1; ++l) {
+				putSample(t, l, (int) ((int) (bitChange[l] * max) * -f * correction));
+			}
+			tpl.end[bit] = t;
+
+			// bit change from the last bit, followed by the constant part
+			for (int last = 0; last < 2; ++last) {
+				t = new byte[BYTES_PER_BIT];
+				for (int l = 0; l < 5; ++l) {
+					if (last == bit) {
+						putSample(t, l, value);
 					} else {
-						for (int l = 0; l < 5; ++l) {
-							value = (int) (f * bitChange[l] * max * correction);
-
-							for (int c = 0; c < sample_size; ++c) {
-								byte sample_byte = (byte) ((value >> (8 * c)) & 0xff);
-								data[(index - 2 + l) * sample_size + c] = sample_byte;
-							}
-						}
-					}
-				}
-
-				for (int k = 3; k <= 37; k++) {
-					// constant value
-					value = (int) (f * max * correction);
-
-					// convert value to bytes
-					for (int c = 0; c < sample_size; c++) {
-						byte sample_byte = (byte) ((value >> (8 * c)) & 0xff);
-						data[(index + k) * sample_size + c] = sample_byte;
+						putSample(t, l, (int) (f * bitChange[l] * max * correction));
 					}
 				}
-
-				// last 2 bit out of 40
-				if (i == inputData.length - 1 && j == 7) {
-					// end
-					for (int l = 0; l <= 1; l++) {
-						value = (int) ((int) (bitChange[l] * max) * -f * correction);
-
-						// convert value to bytes
-						for (int c = 0; c < sample_size; c++) {
-							byte sample_byte = (byte) ((value >> (8 * c)) & 0xff);
-							data[(index + 38 + l) * sample_size + c] = sample_byte;
-						}
-					}
+				for (int k = 5; k < SAMPLES_PER_BIT; ++k) {
+					putSample(t, k, value);
 				}
-
-				// shift bit selection mask 1 bit right to select the
-				// next bit in the following loop
-				comp /= 2;
+				tpl.change[last * 2 + bit] = t;
 			}
 		}
 
-		return data;
+		templates = tpl;
 	}
 
 	/**
-	 * Converts the integer list into a byte array.
+	 * Stores a sample value (little endian).
 	 * 
 	 * @param data
-	 *            Integer list
-	 * @return Byte array containing the integer data.
+	 *            Target array.
+	 * @param index
+	 *            Sample index.
+	 * @param value
+	 *            Sample value.
 	 */
-	private static byte[] toByteArray(List<Integer> data) {
-		byte[] byteData = new byte[data.size() * 4];
+	private static void putSample(byte[] data, int index, int value) {
+		for (int c = 0; c < SAMPLE_SIZE; ++c) {
+			data[index * SAMPLE_SIZE + c] = (byte) ((value >> (8 * c)) & 0xff);
+		}
+	}
 
-		for (int i = 0; i < data.size(); i++) {
-			int value = data.get(i);
+	/**
+	 * PCM templates for a single correction factor.
+	 */
+	private static final class Templates {
+		// begin[bit] = samples 0-37 of the first bit
+		final byte[][] begin = new byte[2][];
+		// change[last bit * 2 + bit] = samples -2-37 of all following bits
+		final byte[][] change = new byte[4][];
+		// end[bit] = samples 38-39 of the last bit
+		final byte[][] end = new byte[2][];
+	}
 
-			byteData[i * 4] = (byte) (value >>> 24);
-			byteData[i * 4 + 1] = (byte) (value >>> 16);
-			byteData[i * 4 + 2] = (byte) (value >>> 8);
-			byteData[i * 4 + 3] = (byte) value;
+	/**
+	 * Produces the PCM data for an array of code words on demand. The
+	 * templates are captured when the stream is created.
+	 */
+	private final class PcmStream {
+		private final Templates tpl = templates;
+		private final int[] data;
+		private final int bitCount;
+		private int bit = 0;
+		private boolean lastHigh = false;
+		private boolean endWritten = false;
+		private int padding = END_PADDING;
+
+		public PcmStream(int[] data, int length) {
+			this.data = data;
+			this.bitCount = length * 32;
+			// Without any bits there is nothing to end
+			this.endWritten = (length == 0);
 		}
 
-		return byteData;
+		/**
+		 * Reads the next PCM data. Templates are never split, so the buffer
+		 * must be able to hold at least one bit.
+		 * 
+		 * @param buf
+		 *            Buffer to fill.
+		 * @param offset
+		 *            Offset into the buffer.
+		 * @param length
+		 *            Maximum number of bytes to read.
+		 * @return Number of bytes read, 0 if the stream is exhausted.
+		 */
+		public int read(byte[] buf, int offset, int length) {
+			int pos = offset;
+			int limit = offset + length;
+
+			while (bit < bitCount) {
+				boolean high = (data[bit >>> 5] & (0x80000000 >>> (bit & 31))) != 0;
+				byte[] t;
+				if (bit == 0) {
+					t = tpl.begin[high ? 1 : 0];
+				} else {
+					// The bit change starts 2 samples before the bit itself
+					t = tpl.change[(lastHigh ? 2 : 0) + (high ? 1 : 0)];
+				}
+
+				if (pos + t.length > limit) {
+					return pos - offset;
+				}
+
+				System.arraycopy(t, 0, buf, pos, t.length);
+				pos += t.length;
+				lastHigh = high;
+				++bit;
+			}
+
+			if (!endWritten) {
+				byte[] t = tpl.end[lastHigh ? 1 : 0];
+				if (pos + t.length > limit) {
+					return pos - offset;
+				}
+
+				System.arraycopy(t, 0, buf, pos, t.length);
+				pos += t.length;
+				endWritten = true;
+			}
+
+			int count = Math.min(padding, limit - pos);
+			Arrays.fill(buf, pos, pos + count, (byte) 0);
+			pos += count;
+			padding -= count;
+
+			return pos - offset;
+		}
 	}
 }
\ No newline at end of file
@@ -1,10 +1,11 @@
 package de.rwth_aachen.afu.raspager.sdr;
 
-import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import de.rwth_aachen.afu.raspager.Configuration;
+import de.rwth_aachen.afu.raspager.LatencyHistogram;
 import de.rwth_aachen.afu.raspager.Transmitter;
 
 /**
@@ -14,64 +15,79 @@ import de.rwth_aachen.afu.raspager.Transmitter;
  */
 public final class SDRTransmitter implements Transmitter {
 	private static final Logger log = Logger.getLogger(SDRTransmitter.class.getName());
-	private final Object lockObj = new Object();
+	// Encoding and sending use separate locks so that the next data can be
+	// encoded while the current data is being sent. If both locks are needed,
+	// sendLock has to be acquired first.
+	private final Object sendLock = new Object();
+	private final Object encodeLock = new Object();
 	private AudioEncoder encoder;
 	private SerialPortComm serial;
 	private GpioPortComm gpio;
 	private int txDelay = 0;
+	private volatile boolean streaming = false;
+	private volatile LatencyHistogram pttLatency;
+	private volatile LongAdder pcmBytes;
+	private volatile LongAdder underruns;
 
 	@Override
 	public void close() throws Exception {
-		synchronized (lockObj) {
-			try {
-				if (serial != null) {
-					serial.close();
-					serial = null;
+		synchronized (sendLock) {
+			synchronized (encodeLock) {
+				try {
+					if (serial != null) {
+						serial.close();
+						serial = null;
+					}
+				} catch (Throwable t) {
+					log.log(Level.SEVERE, "Failed to close serial port.", t);
 				}
-			} catch (Throwable t) {
-				log.log(Level.SEVERE, "Failed to close serial port.", t);
-			}
 
-			try {
-				if (gpio != null) {
-					gpio.close();
-					gpio = null;
+				try {
+					if (gpio != null) {
+						gpio.close();
+						gpio = null;
+					}
+				} catch (Throwable t) {
+					log.log(Level.SEVERE, "Failed to close GPIO port.", t);
 				}
-			} catch (Throwable t) {
-				log.log(Level.SEVERE, "Failed to close GPIO port.", t);
-			}
 
-			encoder = null;
+				encoder = null;
+			}
 		}
 	}
 
 	@Override
 	public void init(Configuration config) throws Exception {
-		synchronized (lockObj) {
-			close();
+		synchronized (sendLock) {
+			synchronized (encodeLock) {
+				close();
 
-			txDelay = config.getInt("txDelay", 0);
-			boolean invert = config.getBoolean("invert", false);
+				txDelay = config.getInt("txDelay", 0);
+				streaming = config.getBoolean("sdr.streaming", false);
+				boolean invert = config.getBoolean("invert", false);
 
-			if (config.getBoolean("serial.use", false)) {
-				int pin = SerialPortComm.getPinNumber(config.getString("serial.pin"));
-				serial = new SerialPortComm(config.getString("serial.port"), pin, invert);
-			}
+				if (config.getBoolean("serial.use", false)) {
+					int pin = SerialPortComm.getPinNumber(config.getString("serial.pin"));
+					serial = new SerialPortComm(config.getString("serial.port"), pin, invert);
+				}
 
-			if (config.getBoolean("gpio.use", true)) {
-				gpio = new GpioPortComm(config.getString("gpio.pin"), invert);
-			}
+				if (config.getBoolean("gpio.use", true)) {
+					gpio = new GpioPortComm(config.getString("gpio.pin"), invert);
+				}
 
-			encoder = new AudioEncoder(config.getString("sdr.device"));
-			encoder.setCorrection(config.getFloat("sdr.correction", 0.0f));
+				encoder = new AudioEncoder(config.getString("sdr.device"));
+				encoder.setCorrection(config.getFloat("sdr.correction", 0.0f));
+			}
 		}
 	}
 
 	@Override
-	public byte[] encode(List<Integer> data) throws Exception {
-		synchronized (lockObj) {
+	public byte[] encode(int[] data, int length) throws Exception {
+		synchronized (encodeLock) {
 			if (encoder != null) {
-				return encoder.encode(data);
+				byte[] result = encoder.encode(data, length);
+				countPcmBytes(result.length);
+				return result;
 			} else {
 				throw new IllegalStateException("Encoder not initialized.");
 			}
@@ -80,29 +96,102 @@ public final class SDRTransmitter implements Transmitter {
 
 	@Override
 	public void send(byte[] data) throws Exception {
-		synchronized (lockObj) {
+		synchronized (sendLock) {
 			if (serial == null && gpio == null) {
 				throw new IllegalStateException("Not initialized");
 			}
 
+			long ptt = System.nanoTime();
 			try {
 				enable();
-
-				if (txDelay > 0) {
-					try {
-						Thread.sleep(txDelay);
-					} catch (Throwable t) {
-						log.log(Level.SEVERE, "Failed to wait for TX delay.", t);
-					}
-				}
+				waitTxDelay();
 
 				encoder.play(data);
+				recordPttLatency(ptt);
+			} finally {
+				disable();
+			}
+		}
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	@Override
+	public void send(int[] data, int length) throws Exception {
+		synchronized (sendLock) {
+			if (!streaming) {
+				send(encode(data, length));
+				return;
+			}
+
+			if (serial == null && gpio == null) {
+				throw new IllegalStateException("Not initialized");
+			}
+
+			long ptt = System.nanoTime();
+			try {
+				enable();
+				waitTxDelay();
+
+				countPcmBytes(encoder.play(data, length));
+				recordPttLatency(ptt);
+				countUnderruns(encoder.getUnderruns());
 			} finally {
 				disable();
 			}
 		}
 	}
 
+	@Override
+	public void setPttLatencyHistogram(LatencyHistogram histogram) {
+		pttLatency = histogram;
+	}
+
+	@Override
+	public void setPcmByteCounter(LongAdder counter) {
+		pcmBytes = counter;
+	}
+
+	@Override
+	public void setUnderrunCounter(LongAdder counter) {
+		underruns = counter;
+	}
+
+	private void countUnderruns(int count) {
+		LongAdder counter = underruns;
+		if (counter != null && count > 0) {
+			counter.add(count);
+		}
+	}
+
+	private void countPcmBytes(long count) {
+		LongAdder counter = pcmBytes;
+		if (counter != null) {
+			counter.add(count);
+		}
+	}
+
+	private void recordPttLatency(long ptt) {
+		LatencyHistogram histogram = pttLatency;
+		long start = encoder.getPlayStartNanos();
+		if (histogram != null && start != 0) {
+			histogram.record(start - ptt);
+		}
+	}
+
+	private void waitTxDelay() {
+		if (txDelay > 0) {
+			try {
+				Thread.sleep(txDelay);
+			} catch (Throwable t) {
+				log.log(Level.SEVERE, "Failed to wait for TX delay.", t);
+			}
+		}
+	}
+
 	private void enable() {
 		try {
 			if (serial != null) {
@@ -145,16 +234,18 @@ public final class SDRTransmitter implements Transmitter {
 		}
 	}
 
+	@Override
 	public void setCorrection(float correction) {
-		synchronized (lockObj) {
+		synchronized (encodeLock) {
 			if (encoder != null) {
 				encoder.setCorrection(correction);
 			}
 		}
 	}
 
+	@Override
 	public float getCorrection() {
-		synchronized (lockObj) {
+		synchronized (encodeLock) {
 			if (encoder != null) {
 				return encoder.getCorrection();
 			} else {
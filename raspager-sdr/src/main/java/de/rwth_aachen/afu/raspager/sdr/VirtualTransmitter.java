@@ -0,0 +1,311 @@
+package de.rwth_aachen.afu.raspager.sdr;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import de.rwth_aachen.afu.raspager.Configuration;
+import de.rwth_aachen.afu.raspager.LatencyHistogram;
+import de.rwth_aachen.afu.raspager.Transmitter;
+
+/**
+ * Transmitter without any hardware. The data is encoded like by the
+ * {@link SDRTransmitter} and either written to files or discarded. Sending
+ * takes as long as playing the data would, so the scheduler behaves as with a
+ * real transmitter. Keying and releasing the transmitter is recorded in an
+ * in-memory event log, which is available via JMX.
+ */
+public final class VirtualTransmitter implements Transmitter, VirtualTransmitterMXBean {
+	/**
+	 * Defines what happens with the sent data.
+	 */
+	public enum Output {
+		/**
+		 * The data is discarded.
+		 */
+		NONE,
+		/**
+		 * Each transmission is written to a WAV file.
+		 */
+		WAV,
+		/**
+		 * Each transmission is written to a file containing the raw PCM
+		 * samples (48 kHz, 16 bit, mono, little endian).
+		 */
+		RAW
+	}
+
+	/**
+	 * Keying or releasing of the transmitter.
+	 */
+	public static final class PttEvent {
+		private final long timeMillis;
+		private final boolean on;
+		private final int bytes;
+
+		private PttEvent(long timeMillis, boolean on, int bytes) {
+			this.timeMillis = timeMillis;
+			this.on = on;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Gets the time of the event.
+		 * 
+		 * @return Time in ms since the epoch.
+		 */
+		public long getTimeMillis() {
+			return timeMillis;
+		}
+
+		/**
+		 * Checks whether the transmitter was keyed or released.
+		 * 
+		 * @return True if the transmitter was keyed.
+		 */
+		public boolean isOn() {
+			return on;
+		}
+
+		/**
+		 * Gets the size of the transmitted data.
+		 * 
+		 * @return Number of bytes.
+		 */
+		public int getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d PTT %s (%d bytes)", timeMillis, on ? "on" : "off", bytes);
+		}
+	}
+
+	private static final Logger log = Logger.getLogger(VirtualTransmitter.class.getName());
+	private static final int DEFAULT_MAX_FILES = 100;
+	private static final int DEFAULT_EVENT_LOG_SIZE = 1000;
+	private final Object sendLock = new Object();
+	private final Object encodeLock = new Object();
+	private final Deque<PttEvent> events = new ArrayDeque<>();
+	private AudioEncoder encoder;
+	private Output output = Output.NONE;
+	private Path directory;
+	private int maxFiles = DEFAULT_MAX_FILES;
+	private int eventLogSize = DEFAULT_EVENT_LOG_SIZE;
+	private boolean realTime = true;
+	private int txDelay = 0;
+	private long fileIndex = 0;
+	private volatile LatencyHistogram pttLatency;
+	private volatile LongAdder pcmBytes;
+
+	@Override
+	public void init(Configuration config) throws Exception {
+		synchronized (sendLock) {
+			synchronized (encodeLock) {
+				close();
+
+				txDelay = config.getInt("txDelay", 0);
+				realTime = config.getBoolean("virtual.realtime", true);
+				maxFiles = Math.max(1, config.getInt("virtual.maxfiles", DEFAULT_MAX_FILES));
+				eventLogSize = Math.max(0, config.getInt("virtual.eventlog", DEFAULT_EVENT_LOG_SIZE));
+
+				output = Output.NONE;
+				String value = config.getString("virtual.output", null);
+				if (value != null) {
+					try {
+						output = Output.valueOf(value.trim().toUpperCase());
+					} catch (IllegalArgumentException ex) {
+						log.log(Level.WARNING, "Invalid virtual transmitter output: {0}", value);
+					}
+				}
+
+				if (output != Output.NONE) {
+					directory = Paths.get(config.getString("virtual.directory", "recordings"));
+					Files.createDirectories(directory);
+				}
+
+				encoder = new AudioEncoder();
+				encoder.setCorrection(config.getFloat("sdr.correction", 0.0f));
+			}
+		}
+	}
+
+	@Override
+	public void close() throws Exception {
+		synchronized (sendLock) {
+			synchronized (encodeLock) {
+				encoder = null;
+			}
+		}
+	}
+
+	@Override
+	public byte[] encode(int[] data, int length) throws Exception {
+		synchronized (encodeLock) {
+			if (encoder != null) {
+				byte[] result = encoder.encode(data, length);
+				LongAdder counter = pcmBytes;
+				if (counter != null) {
+					counter.add(result.length);
+				}
+
+				return result;
+			} else {
+				throw new IllegalStateException("Encoder not initialized.");
+			}
+		}
+	}
+
+	@Override
+	public void send(byte[] data) throws Exception {
+		synchronized (sendLock) {
+			if (encoder == null) {
+				throw new IllegalStateException("Not initialized");
+			}
+
+			long ptt = System.nanoTime();
+			addEvent(true, data.length);
+			try {
+				if (txDelay > 0 && realTime) {
+					Thread.sleep(txDelay);
+				}
+
+				long start = System.nanoTime();
+				LatencyHistogram histogram = pttLatency;
+				if (histogram != null) {
+					histogram.record(start - ptt);
+				}
+
+				write(data);
+
+				if (realTime) {
+					// Wait until the data would have been played
+					long remaining = start + getDurationNanos(data.length) - System.nanoTime();
+					if (remaining > 0) {
+						TimeUnit.NANOSECONDS.sleep(remaining);
+					}
+				}
+			} finally {
+				addEvent(false, data.length);
+			}
+		}
+	}
+
+	private void write(byte[] data) {
+		if (output == Output.NONE) {
+			return;
+		}
+
+		// Rotate through a fixed number of file names
+		long index = fileIndex++ % maxFiles;
+		Path file = directory.resolve(String.format("tx-%04d.%s", index, output == Output.WAV ? "wav" : "raw"));
+
+		try {
+			if (output == Output.WAV) {
+				writeWav(data, file.toFile());
+			} else {
+				Files.write(file, data);
+			}
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Failed to write " + file + ".", ex);
+		}
+	}
+
+	private static void writeWav(byte[] data, File file) throws IOException {
+		AudioFormat format = AudioEncoder.getFormat();
+		try (AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(data), format,
+				data.length / format.getFrameSize())) {
+			AudioSystem.write(in, AudioFileFormat.Type.WAVE, file);
+		}
+	}
+
+	private static long getDurationNanos(int bytes) {
+		AudioFormat format = AudioEncoder.getFormat();
+		long frames = bytes / format.getFrameSize();
+
+		return (long) (frames * 1_000_000_000.0 / format.getFrameRate());
+	}
+
+	private void addEvent(boolean on, int bytes) {
+		synchronized (events) {
+			if (eventLogSize == 0) {
+				return;
+			}
+
+			while (events.size() >= eventLogSize) {
+				events.pollFirst();
+			}
+
+			events.addLast(new PttEvent(System.currentTimeMillis(), on, bytes));
+		}
+	}
+
+	/**
+	 * Gets the logged PTT events, oldest first.
+	 * 
+	 * @return Copy of the event log.
+	 */
+	@Override
+	public List<PttEvent> getPttEvents() {
+		synchronized (events) {
+			return new ArrayList<>(events);
+		}
+	}
+
+	/**
+	 * Removes all logged PTT events.
+	 */
+	@Override
+	public void clearPttEvents() {
+		synchronized (events) {
+			events.clear();
+		}
+	}
+
+	@Override
+	public void setPttLatencyHistogram(LatencyHistogram histogram) {
+		pttLatency = histogram;
+	}
+
+	@Override
+	public void setPcmByteCounter(LongAdder counter) {
+		pcmBytes = counter;
+	}
+
+	@Override
+	public void setCorrection(float correction) {
+		synchronized (encodeLock) {
+			if (encoder != null) {
+				encoder.setCorrection(correction);
+			}
+		}
+	}
+
+	@Override
+	public float getCorrection() {
+		synchronized (encodeLock) {
+			if (encoder != null) {
+				return encoder.getCorrection();
+			} else {
+				return 0.0f;
+			}
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package de.rwth_aachen.afu.raspager.sdr;
+
+import java.util.List;
+
+/**
+ * Management interface of the {@link VirtualTransmitter}.
+ */
+public interface VirtualTransmitterMXBean {
+	List<VirtualTransmitter.PttEvent> getPttEvents();
+
+	void clearPttEvents();
+}
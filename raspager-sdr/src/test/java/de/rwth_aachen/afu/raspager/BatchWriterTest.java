@@ -0,0 +1,161 @@
+package de.rwth_aachen.afu.raspager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BatchWriterTest {
+	private static final int BATCH_SIZE = 17;
+
+	/**
+	 * Layout written before the batch writer: every message starts a new
+	 * batch and the last batch is filled with idle code words.
+	 */
+	private static void addMessageOld(CodeWordBuffer codeWords, CodeWordBuffer cwBuf) {
+		// add sync-word (start of batch)
+		codeWords.add(Pocsag.SYNC);
+
+		int framePos = cwBuf.getFramePos();
+
+		// add idle-words until frame position is reached
+		codeWords.add(Pocsag.IDLE, 2 * framePos);
+
+		// add codewords of message
+		for (int c = 0; c < cwBuf.size(); c++) {
+			if ((codeWords.size() - 18) % 17 == 0)
+				codeWords.add(Pocsag.SYNC);
+			codeWords.add(cwBuf.get(c));
+		}
+
+		// fill last batch with idle-words
+		int fill = (codeWords.size() - 18) % 17;
+		if (fill != 0) {
+			codeWords.add(Pocsag.IDLE, 17 - fill);
+		}
+	}
+
+	private static CodeWordBuffer randomMessage(Random random) {
+		CodeWordBuffer cws = new CodeWordBuffer();
+		cws.setFramePos(random.nextInt(8));
+
+		int n = 1 + random.nextInt(40);
+		for (int i = 0; i < n; ++i) {
+			cws.add(Pocsag.crc(random.nextInt() & ~0x7ff));
+		}
+
+		return cws;
+	}
+
+	private static CodeWordBuffer preamble() {
+		CodeWordBuffer out = new CodeWordBuffer();
+		out.add(Pocsag.PRAEAMBLE, 18);
+		return out;
+	}
+
+	@Test
+	public void singleMessageMatchesOldLayout() {
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; ++i) {
+			CodeWordBuffer cws = randomMessage(random);
+
+			CodeWordBuffer expected = preamble();
+			addMessageOld(expected, cws);
+
+			CodeWordBuffer actual = preamble();
+			BatchWriter writer = new BatchWriter(actual);
+			writer.add(cws);
+			writer.finish();
+
+			assertArrayEquals(expected.toArray(), actual.toArray());
+			assertEquals((expected.size() - 18) / BATCH_SIZE, writer.getBatchCount());
+		}
+	}
+
+	@Test
+	public void messageStartingBehindWritePositionMatchesOldLayout() {
+		Random random = new Random(2);
+		for (int i = 0; i < 100000; ++i) {
+			CodeWordBuffer first = randomMessage(random);
+			CodeWordBuffer second = randomMessage(random);
+
+			CodeWordBuffer actual = preamble();
+			BatchWriter writer = new BatchWriter(actual);
+			writer.add(first);
+			int pos = (actual.size() - 18) % BATCH_SIZE;
+			if (pos == 0 || pos <= 2 + 2 * second.getFramePos()) {
+				// second message continues the batch, checked below
+				continue;
+			}
+
+			writer.add(second);
+			writer.finish();
+
+			CodeWordBuffer expected = preamble();
+			addMessageOld(expected, first);
+			addMessageOld(expected, second);
+
+			assertArrayEquals(expected.toArray(), actual.toArray());
+		}
+	}
+
+	@Test
+	public void continuedBatchesKeepFramePositions() {
+		Random random = new Random(3);
+		for (int i = 0; i < 10000; ++i) {
+			List<CodeWordBuffer> messages = new ArrayList<>();
+			CodeWordBuffer actual = new CodeWordBuffer();
+			BatchWriter writer = new BatchWriter(actual);
+			List<Integer> starts = new ArrayList<>();
+
+			int n = 1 + random.nextInt(10);
+			for (int m = 0; m < n; ++m) {
+				CodeWordBuffer cws = randomMessage(random);
+				messages.add(cws);
+
+				int before = actual.size();
+				writer.add(cws);
+				// walk back from the last code word of the message to its
+				// first one, skipping the sync words
+				int index = actual.size() - 1;
+				for (int c = 1; c < cws.size(); ++c) {
+					if (--index % BATCH_SIZE == 0) {
+						--index;
+					}
+				}
+				assertTrue(index >= before);
+				starts.add(index);
+			}
+			writer.finish();
+
+			assertEquals(0, actual.size() % BATCH_SIZE);
+			assertEquals(actual.size() / BATCH_SIZE, writer.getBatchCount());
+
+			// every batch starts with a sync word
+			for (int b = 0; b < actual.size(); b += BATCH_SIZE) {
+				assertEquals(Pocsag.SYNC, actual.get(b));
+			}
+
+			// every message starts in one of the two code words of its frame
+			// and its code words follow in order, skipping the sync words
+			for (int m = 0; m < n; ++m) {
+				CodeWordBuffer cws = messages.get(m);
+				int index = starts.get(m);
+				int frame = (index % BATCH_SIZE - 1) / 2;
+				assertEquals(cws.getFramePos(), frame);
+
+				for (int c = 0; c < cws.size(); ++c) {
+					if (index % BATCH_SIZE == 0) {
+						++index;
+					}
+					assertEquals(cws.get(c), actual.get(index++));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package de.rwth_aachen.afu.raspager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MessageQueueTest {
+	private static Message message(int address) {
+		return new Message(6, 1, address, 3, "test", null);
+	}
+
+	@Test
+	public void firstSourceGetsItsWeightedTurnFirst() {
+		MessageQueue queue = new MessageQueue(100, MessageQueue.OverflowPolicy.RETRY);
+		MessageQueue.Source primary = queue.addSource("primary", 2);
+		MessageQueue.Source secondary = queue.addSource("secondary", 1);
+
+		Message[] p = new Message[4];
+		Message[] s = new Message[2];
+		for (int i = 0; i < p.length; ++i) {
+			p[i] = message(i);
+			assertTrue(primary.offer(p[i]));
+		}
+		for (int i = 0; i < s.length; ++i) {
+			s[i] = message(100 + i);
+			assertTrue(secondary.offer(s[i]));
+		}
+
+		Message[] expected = { p[0], p[1], s[0], p[2], p[3], s[1] };
+		for (Message m : expected) {
+			assertSame(m, queue.poll());
+		}
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void sourceAddedToEmptyQueueGetsItsWeightedTurnFirst() {
+		MessageQueue queue = new MessageQueue(100, MessageQueue.OverflowPolicy.RETRY);
+		queue.addSource("old", 1).close();
+		assertEquals(0, queue.getSourceCount());
+
+		MessageQueue.Source primary = queue.addSource("primary", 2);
+		MessageQueue.Source secondary = queue.addSource("secondary", 1);
+		Message p0 = message(0);
+		Message p1 = message(1);
+		Message s0 = message(100);
+		primary.offer(p0);
+		primary.offer(p1);
+		secondary.offer(s0);
+
+		assertSame(p0, queue.poll());
+		assertSame(p1, queue.poll());
+		assertSame(s0, queue.poll());
+	}
+
+	@Test
+	public void emptySourceIsRemovedWhenClosed() {
+		MessageQueue queue = new MessageQueue(10, MessageQueue.OverflowPolicy.RETRY);
+		for (int i = 0; i < 100; ++i) {
+			queue.addSource("connection", 1).close();
+		}
+		assertEquals(0, queue.getSourceCount());
+
+		MessageQueue.Source source = queue.addSource("connection", 1);
+		source.offer(message(0));
+		source.close();
+		assertEquals(1, queue.getSourceCount());
+		assertFalse(source.offer(message(1)));
+
+		queue.poll();
+		queue.poll();
+		assertEquals(0, queue.getSourceCount());
+	}
+
+	@Test
+	public void capacityBoundsAllSources() {
+		MessageQueue queue = new MessageQueue(10, 4, MessageQueue.OverflowPolicy.RETRY);
+		int accepted = 0;
+		for (int i = 0; i < 5; ++i) {
+			MessageQueue.Source source = queue.addSource("source" + i, 1);
+			for (int j = 0; j < 10; ++j) {
+				if (source.offer(message(j))) {
+					++accepted;
+				}
+			}
+		}
+
+		assertEquals(10, accepted);
+		assertEquals(10, queue.size());
+		assertEquals(40, queue.getRejectedCount());
+	}
+
+	@Test
+	public void dropOldestDropsFromLongestSource() {
+		MessageQueue queue = new MessageQueue(4, MessageQueue.OverflowPolicy.DROP_OLDEST);
+		MessageQueue.Source flood = queue.addSource("flood", 1);
+		MessageQueue.Source other = queue.addSource("other", 1);
+		for (int i = 0; i < 4; ++i) {
+			flood.offer(message(i));
+		}
+
+		assertTrue(other.offer(message(100)));
+		assertEquals(4, queue.size());
+		assertEquals(1, flood.getDroppedCount());
+		assertEquals(0, other.getDroppedCount());
+	}
+}
@@ -0,0 +1,71 @@
+package de.rwth_aachen.afu.raspager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PocsagTest {
+	/**
+	 * Bitwise implementation the lookup tables replaced.
+	 */
+	private static int referenceCrc(int cw) {
+		int crc = cw;
+		int d = 0xed200000;
+
+		for (int m = 0x80000000; (m & 0x400) == 0; m >>>= 1) {
+			if ((crc & m) != 0)
+				crc ^= d;
+
+			d >>>= 1;
+		}
+
+		cw |= crc;
+
+		char p = (char) (((cw >>> 24) & 0xff) ^ ((cw >>> 16) & 0xff) ^ ((cw >>> 8) & 0xff) ^ (cw & 0xff));
+		p ^= (p >>> 4);
+		p ^= (p >>> 2);
+		p ^= (p >>> 1);
+		p &= 0x01;
+
+		return cw | p;
+	}
+
+	@Test
+	public void crcMatchesReferenceForAllDataWords() {
+		for (int data = 0; data < (1 << 21); ++data) {
+			int cw = data << 11;
+			assertEquals(Integer.toHexString(cw), referenceCrc(cw), Pocsag.crc(cw));
+		}
+	}
+
+	@Test
+	public void crcMatchesReferenceWithLowBitsSet() {
+		Random random = new Random(1);
+		for (int i = 0; i < 1000000; ++i) {
+			int cw = random.nextInt();
+			assertEquals(Integer.toHexString(cw), referenceCrc(cw), Pocsag.crc(cw));
+		}
+	}
+
+	@Test
+	public void crcArrayMatchesReference() {
+		Random random = new Random(2);
+		int[] src = new int[4096];
+		int[] expected = new int[src.length];
+		for (int i = 0; i < src.length; ++i) {
+			src[i] = random.nextInt() & ~0x7ff;
+			expected[i] = referenceCrc(src[i]);
+		}
+
+		int[] dst = new int[src.length];
+		Pocsag.crc(src, dst, src.length);
+		assertArrayEquals(expected, dst);
+
+		// in place
+		Pocsag.crc(src, src, src.length);
+		assertArrayEquals(expected, src);
+	}
+}
@@ -0,0 +1,117 @@
+package de.rwth_aachen.afu.raspager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SchedulerTest {
+	/**
+	 * Transmitter which does not send anything.
+	 */
+	private static final class NullTransmitter implements Transmitter {
+		@Override
+		public void init(Configuration config) {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public byte[] encode(int[] data, int length) {
+			return new byte[0];
+		}
+
+		@Override
+		public void send(byte[] data) {
+		}
+	}
+
+	/**
+	 * Scheduler running on a simulated clock. Sending advances the clock by
+	 * the air time of the data.
+	 */
+	private static final class TestScheduler extends Scheduler {
+		private int clock;
+		private int transmissionStart = -1;
+		private int transmissionEnd = -1;
+
+		private TestScheduler(MessageQueue queue) {
+			super(config(), queue, new NullTransmitter());
+		}
+
+		private static Configuration config() {
+			Configuration config = new Configuration();
+			config.setInt(ConfigKeys.TX_DELAY, 0);
+			return config;
+		}
+
+		@Override
+		protected int getCurrentTime() {
+			return clock;
+		}
+
+		@Override
+		protected void transmitData() {
+			transmissionStart = clock;
+			// 32 bits per code word at 1200 bps, in 0.1 s
+			clock += (codeWords.size() * 32 * 10 + 1199) / 1200;
+			transmissionEnd = clock;
+		}
+
+		/**
+		 * Runs the scheduler until it transmits, waking up like the real
+		 * scheduler does while data is held for the next slot.
+		 */
+		private void runUntilTransmission() {
+			for (int i = 0; i < 4 && transmissionEnd < 0; ++i) {
+				run();
+				if (transmissionEnd < 0 && schedulerState == State.DATA_ENCODED) {
+					clock = (clock / 64 + 1) * 64;
+				}
+			}
+		}
+	}
+
+	private static MessageQueue fullQueue() {
+		MessageQueue queue = new MessageQueue(1000, MessageQueue.OverflowPolicy.RETRY);
+		MessageQueue.Source source = queue.addSource("master", 1);
+		String text = "The quick brown fox jumps over the lazy dog 0123456789. The quick brown fox jumps.";
+		for (int i = 0; i < 200; ++i) {
+			source.offer(new Message(6, 1, 1000 + i, 3, text, null));
+		}
+
+		return queue;
+	}
+
+	private static void assertEndsWithinAllowedSlots(String allowed, int runEnd) {
+		TestScheduler scheduler = new TestScheduler(fullQueue());
+		try {
+			scheduler.setTimeSlots(allowed);
+			// Slot 1 is already running when messages are found
+			scheduler.clock = 64 + 10;
+			scheduler.schedulerState = Scheduler.State.SLOT_STILL_ALLOWED;
+
+			scheduler.runUntilTransmission();
+
+			assertEquals(64 + 10, scheduler.transmissionStart);
+			assertTrue("transmission ends at " + scheduler.transmissionEnd + ", allowed slots end at " + runEnd,
+					scheduler.transmissionEnd <= runEnd);
+		} finally {
+			scheduler.cancel();
+		}
+	}
+
+	@Test
+	public void stillAllowedDataEndsBeforeNextSlotsEnd() {
+		// Slots 1 and 2 are allowed, they end at 3 * 64
+		assertEndsWithinAllowedSlots("12", 3 * 64);
+	}
+
+	@Test
+	public void stillAllowedDataEndsBeforeSlotEnd() {
+		// Only slot 1 is allowed, it ends at 2 * 64
+		assertEndsWithinAllowedSlots("1", 2 * 64);
+	}
+}